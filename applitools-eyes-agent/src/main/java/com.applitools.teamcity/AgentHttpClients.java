@@ -0,0 +1,151 @@
+package com.applitools.teamcity;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived pooled HTTP clients, one per Applitools server URL, shared by all builds on the agent.
+ * <p>
+ * Connections idle for too long are closed in the background. The servers listed in the
+ * {@code teamcity.applitools.http.prewarmUrls} agent property are pre-warmed when the agent starts and then kept
+ * alive with a request every half idle timeout, so builds do not pay for the DNS lookup and the TCP and TLS
+ * handshakes. Other servers are connected to by the first build that uses them.
+ */
+public class AgentHttpClients {
+
+    static final String PREWARM_URLS_PROPERTY = "teamcity.applitools.http.prewarmUrls";
+    static final String MAX_CONNECTIONS_PER_HOST_PROPERTY = "teamcity.applitools.http.maxConnectionsPerHost";
+    static final String CONNECT_TIMEOUT_PROPERTY = "teamcity.applitools.http.connectTimeoutMs";
+    static final String SOCKET_TIMEOUT_PROPERTY = "teamcity.applitools.http.socketTimeoutMs";
+    static final String IDLE_TIMEOUT_PROPERTY = "teamcity.applitools.http.idleTimeoutMs";
+
+    private final ConcurrentMap<String, PooledHttpClient> clients = new ConcurrentHashMap<String, PooledHttpClient>();
+    private IdleConnectionTimeoutThread idleConnectionThread;
+    private ScheduledExecutorService keepAliveExecutor;
+
+    /**
+     * Starts idle connection eviction, and pre-warms and keeps alive the clients of the servers listed in the
+     * {@code teamcity.applitools.http.prewarmUrls} agent property.
+     */
+    public synchronized void start() {
+        if (idleConnectionThread != null) return;
+        long idleTimeoutMs = TeamCityProperties.getLong(IDLE_TIMEOUT_PROPERTY, 60000);
+        idleConnectionThread = new IdleConnectionTimeoutThread();
+        idleConnectionThread.setName("Applitools idle connection eviction");
+        idleConnectionThread.setConnectionTimeout(idleTimeoutMs);
+        idleConnectionThread.setTimeoutInterval(Math.max(1000, idleTimeoutMs / 2));
+        for (PooledHttpClient client : clients.values()) {
+            idleConnectionThread.addConnectionManager(client.getConnectionManager());
+        }
+        idleConnectionThread.start();
+
+        final Set<String> urls = new LinkedHashSet<String>();
+        for (String url : TeamCityProperties.getProperty(PREWARM_URLS_PROPERTY, "").split(",")) {
+            if (!url.trim().isEmpty()) urls.add(url.trim());
+        }
+        if (urls.isEmpty()) return;
+        keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Applitools connection keep-alive");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // a request every half idle timeout reuses the pooled connection before it is evicted
+        keepAliveExecutor.scheduleWithFixedDelay(new Runnable() {
+            private boolean warm;
+
+            @Override
+            public void run() {
+                for (String url : urls) {
+                    prewarm(url, !warm);
+                }
+                warm = true;
+            }
+        }, 0, Math.max(1000, idleTimeoutMs / 2), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the shared client for the given Applitools server.
+     */
+    public PooledHttpClient getClient(String serverUrl) {
+        String key = Common.getServerUrl(serverUrl);
+        PooledHttpClient client = clients.get(key);
+        if (client == null) {
+            // each client talks to a single host, so its per host limit is also its total limit
+            int maxConnections = TeamCityProperties.getInteger(MAX_CONNECTIONS_PER_HOST_PROPERTY, 4);
+            PooledHttpClient created = new PooledHttpClient(maxConnections, maxConnections,
+                    TeamCityProperties.getInteger(CONNECT_TIMEOUT_PROPERTY, 10000),
+                    TeamCityProperties.getInteger(SOCKET_TIMEOUT_PROPERTY, 30000));
+            client = clients.putIfAbsent(key, created);
+            if (client == null) {
+                client = created;
+                synchronized (this) {
+                    if (idleConnectionThread != null) {
+                        idleConnectionThread.addConnectionManager(client.getConnectionManager());
+                    }
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Stops the keep-alive requests and idle connection eviction, and closes all pooled connections.
+     */
+    public synchronized void shutdown() {
+        if (keepAliveExecutor != null) {
+            keepAliveExecutor.shutdownNow();
+            keepAliveExecutor = null;
+        }
+        if (idleConnectionThread != null) {
+            idleConnectionThread.shutdown();
+            idleConnectionThread = null;
+        }
+        Collection<String> urls = new ArrayList<String>(clients.keySet());
+        for (String url : urls) {
+            PooledHttpClient client = clients.remove(url);
+            if (client != null) {
+                Loggers.AGENT.info("Closing Applitools HTTP client for " + url + ": " + client.describe());
+                client.shutdown();
+            }
+        }
+    }
+
+    private void prewarm(String serverUrl, boolean firstTime) {
+        HeadMethod request = new HeadMethod(Common.getServerUrl(serverUrl));
+        try {
+            int statusCode = getClient(serverUrl).executeMethod(request);
+            if (firstTime) {
+                Loggers.AGENT.info("Pre-warmed connection to " + serverUrl + " (" + statusCode + " status)");
+            } else {
+                Loggers.AGENT.debug("Kept connection to " + serverUrl + " alive (" + statusCode + " status)");
+            }
+        } catch (IOException e) {
+            if (firstTime) {
+                Loggers.AGENT.info("Failed to pre-warm connection to " + serverUrl + ": " + e.getMessage());
+            } else {
+                Loggers.AGENT.debug("Failed to keep connection to " + serverUrl + " alive: " + e.getMessage());
+            }
+        } catch (IllegalArgumentException e) {
+            if (firstTime) Loggers.AGENT.warn("Invalid Applitools server URL to pre-warm: " + serverUrl);
+        } finally {
+            request.releaseConnection();
+        }
+    }
+}
@@ -4,19 +4,15 @@ import jetbrains.buildServer.agent.AgentBuildFeature;
 import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
 import jetbrains.buildServer.agent.AgentLifeCycleListener;
 import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.agent.BuildRunnerContext;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.VcsRoot;
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.URI;
-import org.apache.commons.httpclient.URIException;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.RequestEntity;
-import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.IOException;
 import java.util.Collection;
 
 /**
@@ -24,11 +20,34 @@ import java.util.Collection;
  */
 public class ApplitoolsLifeCycleAdapter extends AgentLifeCycleAdapter {
 
+    private final AgentHttpClients httpClients;
+    private final PointerBinder pointerBinder;
+    private final EyesStepTracker eyesStepTracker;
+
     public ApplitoolsLifeCycleAdapter(
-            @NotNull EventDispatcher<AgentLifeCycleListener> agentDispatcher) {
+            @NotNull EventDispatcher<AgentLifeCycleListener> agentDispatcher,
+            @NotNull AgentHttpClients httpClients,
+            @NotNull PointerBinder pointerBinder,
+            @NotNull EyesStepTracker eyesStepTracker) {
+        this.httpClients = httpClients;
+        this.pointerBinder = pointerBinder;
+        this.eyesStepTracker = eyesStepTracker;
         agentDispatcher.addListener(this);
     }
 
+    @Override
+    public void agentStarted(@NotNull BuildAgent agent) {
+        super.agentStarted(agent);
+        httpClients.start();
+    }
+
+    @Override
+    public void agentShutdown() {
+        super.agentShutdown();
+        pointerBinder.shutdown();
+        httpClients.shutdown();
+    }
+
     @Override
     public void buildStarted(@NotNull AgentRunningBuild runningBuild) {
         super.buildStarted(runningBuild);
@@ -37,60 +56,41 @@ public class ApplitoolsLifeCycleAdapter extends AgentLifeCycleAdapter {
         Collection<AgentBuildFeature> features = runningBuild.getBuildFeaturesOfType(Constants.APPLITOOLS_BUILD_FEATURE_TYPE);
         if (features.isEmpty()) return;
         for (AgentBuildFeature feature : features) {
-            bindPointersIfNeeded(runningBuild, feature);
+            pointerBinder.bindIfNeeded(runningBuild, feature);
             populateEnvironmentVariables(runningBuild, feature);
         }
     }
 
-    private void bindPointersIfNeeded(AgentRunningBuild build, AgentBuildFeature feature) {
-        String apiKey = feature.getParameters().get(Constants.APPLITOOLS_API_KEY_FIELD);
-        String serverUrl = Common.getServerUrl(feature.getParameters().get(Constants.APPLITOOLS_SERVER_URL_FIELD));
-        String buildId = Common.generateBatchId(build.getBuildTypeId(), build.getBuildNumber(), build.getBuildId());
-        String eyesScmIntegrationEnabled = feature.getParameters().get(Constants.APPLITOOLS_SCM_INTEGRATION_ENABLED_FIELD);
-        if (apiKey != null && !apiKey.isEmpty() && "true".equalsIgnoreCase(eyesScmIntegrationEnabled)) {
-            String batchId = feature.getParameters().get(Constants.APPLITOOLS_BATCH_ID_ENV_VAR);
-            if (batchId == null || batchId.isEmpty()){
-                System.getenv(Constants.APPLITOOLS_BATCH_ID_ENV_VAR);
-            }
-            if (batchId == null || batchId.isEmpty()) {
-                batchId = getCommitHash(build);
-            }
-
-            HttpClient httpClient = new HttpClient();
-            try {
-                URI targetUrl = new URI(serverUrl, false);
-                targetUrl.setPath(String.format(Constants.BATCH_BIND_POINTERS_PATH, batchId));
-                targetUrl.setQuery("apiKey=" + apiKey);
-                PostMethod postRequest = new PostMethod(targetUrl.toString());
-                try {
-                    RequestEntity reqEnt = new StringRequestEntity("{\"secondaryBatchPointerId\":\"" + buildId + "\"}", "application/json", "UTF-8");
-                    postRequest.setRequestEntity(reqEnt);
-                    Loggers.AGENT.info(String.format("Binding build id %s to batch id %s", buildId, batchId));
-                    int statusCode = httpClient.executeMethod(postRequest);
-                    Loggers.AGENT.info("Batch binding is done with " + statusCode + " status");
-                } catch (IOException e) {
-                    Loggers.AGENT.error("Failed to complete HTTP request", e);
-                } finally {
-                    postRequest.releaseConnection();
-                }
-            } catch (URIException exception) {
-                Loggers.AGENT.error("Failed to get API endpoint URL",exception);
-            }
-        }
+    @Override
+    public void beforeRunnerStart(@NotNull BuildRunnerContext runner) {
+        super.beforeRunnerStart(runner);
+        pointerBinder.awaitBindings(runner.getBuild());
+    }
+
+    @Override
+    public void runnerFinished(@NotNull BuildRunnerContext runner, @NotNull BuildFinishedStatus status) {
+        super.runnerFinished(runner, status);
+        eyesStepTracker.stepFinished(runner);
+    }
+
+    @Override
+    public void buildFinished(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+        super.buildFinished(build, buildStatus);
+        pointerBinder.cancelBindings(build);
     }
 
     @NotNull
-    private static String getCommitHash(AgentRunningBuild build) {
+    static String getCommitHash(AgentRunningBuild build) {
         VcsRoot vcsRoot = build.getVcsRootEntries().get(0).getVcsRoot();
         return build.getBuildCurrentVersion(vcsRoot);
     }
 
-    private String getApplitoolsURL(AgentBuildFeature feature) {
+    private static String getApplitoolsURL(AgentBuildFeature feature) {
         String serverURL = feature.getParameters().get(Constants.APPLITOOLS_SERVER_URL_FIELD);
         return Common.getServerUrl(serverURL);
     }
 
-    private void populateEnvironmentVariables(AgentRunningBuild runningBuild, AgentBuildFeature feature) {
+    static void populateEnvironmentVariables(AgentRunningBuild runningBuild, AgentBuildFeature feature) {
         runningBuild.getBuildLogger().message("Creating Applitools environment variables:");
         Loggers.AGENT.info("Creating Applitools environment variables:");
         String apiKey = feature.getParameters().get(Constants.APPLITOOLS_API_KEY_FIELD);
@@ -116,9 +116,13 @@ public class ApplitoolsLifeCycleAdapter extends AgentLifeCycleAdapter {
         addSharedEnvironmentVariable(runningBuild, Constants.APPLITOOLS_BATCH_SEQUENCE_ENV_VAR, sequenceName);
 
         addSharedEnvironmentVariable(runningBuild, Constants.APPLITOOLS_DONT_CLOSE_BATCHES_ENV_VAR, "true");
+
+        // the share of the account concurrency the server allocated to this build, if the account limit is set
+        addSharedEnvironmentVariable(runningBuild, Constants.APPLITOOLS_CONCURRENCY_ENV_VAR,
+                runningBuild.getSharedConfigParameters().get(Constants.APPLITOOLS_CONCURRENCY_PARAMETER));
     }
 
-    private void addSharedEnvironmentVariable(AgentRunningBuild runningBuild, String key, String value) {
+    private static void addSharedEnvironmentVariable(AgentRunningBuild runningBuild, String key, String value) {
         if (value != null) {
             runningBuild.getBuildLogger().message(key + " = " + value);
             Loggers.AGENT.info(key + " = " + value);
@@ -0,0 +1,55 @@
+package com.applitools.teamcity;
+
+import jetbrains.buildServer.agent.AgentBuildFeature;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildRunnerContext;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lets the server close the batch when the build step set in the "Close batch after step" field of the build feature
+ * ends, instead of when the build finishes, after the steps that publish artifacts, deploy or clean up.
+ * <p>
+ * When that step ends, the agent asks the server to close the batch with an {@code applitoolsEyes} service message.
+ * The server still closes the batch at build finish, in case a later step ran tests too.
+ * <p>
+ * Only builds whose feature notifies by completion are handled. It can be turned off with
+ * {@code teamcity.applitools.closeAfterStep.enabled=false}.
+ */
+public class EyesStepTracker {
+
+    static final String ENABLED_PROPERTY = "teamcity.applitools.closeAfterStep.enabled";
+
+    /**
+     * Asks the server to close the batch if the step is the one set in the build feature.
+     */
+    public void stepFinished(@NotNull BuildRunnerContext runner) {
+        if (!TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY)) return;
+        AgentRunningBuild build = runner.getBuild();
+        for (AgentBuildFeature feature : build.getBuildFeaturesOfType(Constants.APPLITOOLS_BUILD_FEATURE_TYPE)) {
+            Map<String, String> parameters = feature.getParameters();
+            String apiKey = parameters.get(Constants.APPLITOOLS_API_KEY_FIELD);
+            String notifyByCompletion = parameters.get(Constants.APPLITOOLS_NOTIFY_BY_COMPLETION_FIELD);
+            String closeAfterStep = parameters.get(Constants.APPLITOOLS_CLOSE_BATCH_AFTER_STEP_FIELD);
+            if (apiKey == null || apiKey.isEmpty() || !"true".equalsIgnoreCase(notifyByCompletion)
+                    || closeAfterStep == null || closeAfterStep.trim().isEmpty()) {
+                continue;
+            }
+            closeAfterStep = closeAfterStep.trim();
+            if (!closeAfterStep.equals(runner.getId()) && !closeAfterStep.equals(runner.getName())) continue;
+
+            String batchId = Common.generateBatchId(build.getBuildTypeId(), build.getBuildNumber(), build.getBuildId());
+            build.getBuildLogger().message(String.format("Step '%s' finished, closing Applitools batch %s",
+                    runner.getName(), batchId));
+            Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("event", Constants.EYES_EVENT_CLOSE_BATCH);
+            attributes.put("runnerId", runner.getId());
+            build.getBuildLogger().message(ServiceMessage.asString(Constants.EYES_SERVICE_MESSAGE, attributes));
+            return;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.applitools.teamcity;
+
+import jetbrains.buildServer.agent.AgentBuildFeature;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Binds the build batch pointer to the SCM batch in the background, so checkout does not wait for the
+ * Applitools server. The binding is awaited, up to a deadline, before the first build step starts.
+ * <p>
+ * Bindings are keyed by (server URL, commit hash, secondary pointer id). A binding is registered before it is sent,
+ * so the same binding requested again while it runs, for example by duplicate features of the build, is not sent
+ * twice. The secondary pointer id is the batch id of the build, so bindings are never shared between builds.
+ */
+public class PointerBinder {
+
+    /** Can be set as an agent property or overridden by a build configuration parameter. */
+    static final String DEADLINE_PROPERTY = "teamcity.applitools.bindPointers.deadlineMs";
+    static final String DURATION_STATISTIC = "applitools.bindPointers.durationMs";
+    static final String BLOCKED_STATISTIC = "applitools.bindPointers.blockedMs";
+
+    private final AgentHttpClients httpClients;
+    private final EyesRequestExecutor requestExecutor;
+    private final ExecutorService executor;
+    private final ConcurrentMap<Long, List<Binding>> bindings = new ConcurrentHashMap<Long, List<Binding>>();
+    private final ConcurrentMap<String, Binding> inFlight = new ConcurrentHashMap<String, Binding>();
+
+    public PointerBinder(@NotNull AgentHttpClients httpClients) {
+        this.httpClients = httpClients;
+        requestExecutor = new EyesRequestExecutor(new CircuitBreaker.Listener() {
+            @Override
+            public void stateChanged(String endpoint, CircuitBreaker.State from, CircuitBreaker.State to) {
+                Loggers.AGENT.info("Circuit of " + endpoint + " changed from " + from + " to " + to);
+            }
+        });
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Applitools pointer binding");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts binding the build to the SCM batch if SCM integration is enabled for the feature.
+     */
+    public void bindIfNeeded(final AgentRunningBuild build, AgentBuildFeature feature) {
+        final String apiKey = feature.getParameters().get(Constants.APPLITOOLS_API_KEY_FIELD);
+        final String serverUrl = Common.getServerUrl(feature.getParameters().get(Constants.APPLITOOLS_SERVER_URL_FIELD));
+        final String buildId = Common.generateBatchId(build.getBuildTypeId(), build.getBuildNumber(), build.getBuildId());
+        String eyesScmIntegrationEnabled = feature.getParameters().get(Constants.APPLITOOLS_SCM_INTEGRATION_ENABLED_FIELD);
+        if (apiKey != null && !apiKey.isEmpty() && "true".equalsIgnoreCase(eyesScmIntegrationEnabled)) {
+            String batchId = feature.getParameters().get(Constants.APPLITOOLS_BATCH_ID_ENV_VAR);
+            if (batchId == null || batchId.isEmpty()){
+                batchId = System.getenv(Constants.APPLITOOLS_BATCH_ID_ENV_VAR);
+            }
+            if (batchId == null || batchId.isEmpty()) {
+                batchId = ApplitoolsLifeCycleAdapter.getCommitHash(build);
+            }
+            final String commitBatchId = batchId;
+            final Binding binding = new Binding(getBindingKey(serverUrl, commitBatchId, buildId));
+            if (inFlight.putIfAbsent(binding.key, binding) != null) {
+                build.getBuildLogger().message(String.format("Applitools batch %s is already being bound to build %s", commitBatchId, buildId));
+                return;
+            }
+            binding.future = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        bind(build, binding, serverUrl, apiKey, commitBatchId, buildId);
+                    } finally {
+                        inFlight.remove(binding.key, binding);
+                    }
+                }
+            });
+            List<Binding> buildBindings = bindings.get(build.getBuildId());
+            if (buildBindings == null) {
+                buildBindings = new CopyOnWriteArrayList<Binding>();
+                List<Binding> existing = bindings.putIfAbsent(build.getBuildId(), buildBindings);
+                if (existing != null) buildBindings = existing;
+            }
+            buildBindings.add(binding);
+        }
+    }
+
+    /**
+     * Waits for the bindings started for the build, but not past the deadline counted from the build start.
+     * Bindings still running at the deadline are cancelled.
+     */
+    public void awaitBindings(AgentRunningBuild build) {
+        List<Binding> buildBindings = bindings.remove(build.getBuildId());
+        if (buildBindings == null) return;
+        long deadlineNanos = TimeUnit.MILLISECONDS.toNanos(getDeadlineMs(build));
+        long waitStarted = System.nanoTime();
+        for (Binding binding : buildBindings) {
+            long remaining = binding.startedAt + deadlineNanos - System.nanoTime();
+            try {
+                binding.future.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                cancel(binding);
+                build.getBuildLogger().warning("Applitools batch binding did not complete in " +
+                        TimeUnit.NANOSECONDS.toMillis(deadlineNanos) + " ms, continuing without it");
+            } catch (ExecutionException e) {
+                Loggers.AGENT.error("Unexpected error while binding batch pointers", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        reportStatistic(build.getBuildLogger(), BLOCKED_STATISTIC, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStarted));
+    }
+
+    /**
+     * Cancels the bindings of a build that finished before running any step.
+     */
+    public void cancelBindings(AgentRunningBuild build) {
+        List<Binding> buildBindings = bindings.remove(build.getBuildId());
+        if (buildBindings == null) return;
+        for (Binding binding : buildBindings) {
+            cancel(binding);
+        }
+    }
+
+    private void cancel(Binding binding) {
+        binding.future.cancel(true);
+        // a binding cancelled before it ran never unregisters itself
+        inFlight.remove(binding.key, binding);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void bind(AgentRunningBuild build, Binding binding, String serverUrl, String apiKey, String batchId, String buildId) {
+        BuildProgressLogger logger = build.getBuildLogger();
+        final PooledHttpClient httpClient = httpClients.getClient(serverUrl);
+        try {
+            URI targetUrl = new URI(serverUrl, false);
+            targetUrl.setPath(String.format(Constants.BATCH_BIND_POINTERS_PATH, batchId));
+            targetUrl.setQuery("apiKey=" + apiKey);
+            final String url = targetUrl.toString();
+            final String body = "{\"secondaryBatchPointerId\":\"" + buildId + "\"}";
+            try {
+                Loggers.AGENT.info(String.format("Binding build id %s to batch id %s", buildId, batchId));
+                int statusCode = requestExecutor.execute(serverUrl, new EyesRequestExecutor.Request() {
+                    @Override
+                    public int execute() throws IOException {
+                        PostMethod postRequest = new PostMethod(url);
+                        try {
+                            RequestEntity reqEnt = new StringRequestEntity(body, "application/json", "UTF-8");
+                            postRequest.setRequestEntity(reqEnt);
+                            return httpClient.executeMethod(postRequest);
+                        } finally {
+                            postRequest.releaseConnection();
+                        }
+                    }
+                });
+                long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - binding.startedAt);
+                if (EyesRequestExecutor.isSuccessful(statusCode)) {
+                    Loggers.AGENT.info("Batch binding is done with " + statusCode + " status");
+                    logger.message(String.format("Applitools batch %s bound to build %s in %d ms", batchId, buildId, durationMs));
+                } else {
+                    Loggers.AGENT.warn("Batch binding failed with " + statusCode + " status");
+                    logger.warning(String.format("Applitools batch binding failed with %d status after %d ms", statusCode, durationMs));
+                }
+                reportStatistic(logger, DURATION_STATISTIC, durationMs);
+            } catch (IOException e) {
+                Loggers.AGENT.error("Failed to complete HTTP request", e);
+                logger.warning("Applitools batch binding failed: " + e.getMessage());
+            }
+        } catch (URIException exception) {
+            Loggers.AGENT.error("Failed to get API endpoint URL",exception);
+        }
+    }
+
+    private static String getBindingKey(String serverUrl, String commitHash, String secondaryBatchPointerId) {
+        return serverUrl + '\n' + commitHash + '\n' + secondaryBatchPointerId;
+    }
+
+    private static long getDeadlineMs(AgentRunningBuild build) {
+        String value = build.getSharedConfigParameters().get(DEADLINE_PROPERTY);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                Loggers.AGENT.warn("Ignoring invalid " + DEADLINE_PROPERTY + " value: " + value);
+            }
+        }
+        return TeamCityProperties.getLong(DEADLINE_PROPERTY, 30000);
+    }
+
+    static void reportStatistic(BuildProgressLogger logger, String key, long value) {
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("key", key);
+        attributes.put("value", Long.toString(value));
+        logger.message(ServiceMessage.asString("buildStatisticValue", attributes));
+    }
+
+    private static class Binding {
+        private final String key;
+        private final long startedAt = System.nanoTime();
+        private volatile Future<?> future;
+
+        private Binding(String key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.applitools.teamcity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BatchIdBenchmark {
+
+    private String buildTypeId = "MyProject_UiTests";
+    private String buildNumber = "1024";
+    private long buildId = 123456789L;
+
+    @Benchmark
+    public String generateBatchId() {
+        return Common.generateBatchId(buildTypeId, buildNumber, buildId);
+    }
+}
@@ -0,0 +1,71 @@
+package com.applitools.teamcity;
+
+import com.applitools.teamcity.testkit.Stubs;
+import jetbrains.buildServer.agent.AgentBuildFeature;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EnvironmentVariablesBenchmark {
+
+    @Param({"false", "true"})
+    public boolean scmIntegration;
+
+    private AgentRunningBuild build;
+    private AgentBuildFeature feature;
+    private int exported;
+
+    @Setup
+    public void setUp() {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put(Constants.APPLITOOLS_API_KEY_FIELD, "0123456789abcdef0123456789abcdef");
+        parameters.put(Constants.APPLITOOLS_SERVER_URL_FIELD, Constants.DEFAULT_APPLITOOLS_SERVER_URL);
+        parameters.put(Constants.APPLITOOLS_SCM_INTEGRATION_ENABLED_FIELD, Boolean.toString(scmIntegration));
+        Map<String, Object> featureAnswers = new HashMap<String, Object>();
+        featureAnswers.put("getParameters", parameters);
+        feature = Stubs.of(AgentBuildFeature.class, featureAnswers);
+
+        VcsRootEntry vcsRootEntry = Stubs.of(VcsRootEntry.class, Collections.singletonMap("getVcsRoot", Stubs.of(VcsRoot.class)));
+        Map<String, Object> buildAnswers = new HashMap<String, Object>();
+        buildAnswers.put("getBuildLogger", Stubs.of(BuildProgressLogger.class));
+        buildAnswers.put("getBuildTypeId", "MyProject_UiTests");
+        buildAnswers.put("getBuildNumber", "1024");
+        buildAnswers.put("getBuildId", 123456789L);
+        buildAnswers.put("getProjectName", "My Project");
+        buildAnswers.put("getBuildTypeName", "UI Tests");
+        buildAnswers.put("getVcsRootEntries", Collections.singletonList(vcsRootEntry));
+        buildAnswers.put("getBuildCurrentVersion", "4f2a0c1e9b7d4c3a8e6f5d4c3b2a19087f6e5d4c");
+        buildAnswers.put("getSharedConfigParameters", Collections.emptyMap());
+        buildAnswers.put("addSharedEnvironmentVariable", new Stubs.Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                exported += ((String) args[1]).length();
+                return null;
+            }
+        });
+        build = Stubs.of(AgentRunningBuild.class, buildAnswers);
+    }
+
+    @Benchmark
+    public int populateEnvironmentVariables() {
+        ApplitoolsLifeCycleAdapter.populateEnvironmentVariables(build, feature);
+        return exported;
+    }
+}
@@ -0,0 +1,141 @@
+package com.applitools.teamcity.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Runs the plugin benchmarks with the GC profiler and compares the results with a baseline.
+ * <p>
+ * Accepts the usual JMH command line options. System properties:
+ * <ul>
+ * <li>{@code benchmark.baseline} - the baseline file, {@code baseline.properties} by default;</li>
+ * <li>{@code benchmark.updateBaseline=true} - write the results as the new baseline;</li>
+ * <li>{@code benchmark.tolerance} - the allowed slowdown or allocation growth, 0.2 by default;</li>
+ * <li>{@code benchmark.failOnRegression=true} - exit with a non-zero code on regressions.</li>
+ * </ul>
+ */
+public class BenchmarkRunner {
+
+    private static final String SCORE_SUFFIX = ".ns";
+    private static final String ALLOCATION_SUFFIX = ".bytes";
+    private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws Exception {
+        Collection<RunResult> results = new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include("com\\.applitools\\.teamcity\\..*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-result.json")
+                .build()).run();
+
+        Map<String, Double> current = toMetrics(results);
+        File baselineFile = new File(System.getProperty("benchmark.baseline", "baseline.properties"));
+        if (Boolean.getBoolean("benchmark.updateBaseline")) {
+            write(current, baselineFile);
+            System.out.println("Baseline written to " + baselineFile.getAbsolutePath());
+            return;
+        }
+        int regressions = compare(current, read(baselineFile), Double.parseDouble(System.getProperty("benchmark.tolerance", "0.2")));
+        if (regressions > 0 && Boolean.getBoolean("benchmark.failOnRegression")) {
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Double> toMetrics(Collection<RunResult> results) {
+        Map<String, Double> metrics = new TreeMap<String, Double>();
+        for (RunResult result : results) {
+            StringBuilder name = new StringBuilder(result.getParams().getBenchmark());
+            for (String key : result.getParams().getParamsKeys()) {
+                name.append('[').append(key).append('=').append(result.getParams().getParam(key)).append(']');
+            }
+            metrics.put(name + SCORE_SUFFIX, result.getPrimaryResult().getScore());
+            for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+                if (secondary.getKey().endsWith(ALLOCATION_METRIC)) {
+                    metrics.put(name + ALLOCATION_SUFFIX, secondary.getValue().getScore());
+                }
+            }
+        }
+        return metrics;
+    }
+
+    private static int compare(Map<String, Double> current, Map<String, Double> baseline, double tolerance) {
+        int regressions = 0;
+        System.out.println();
+        System.out.println(String.format("%-100s %14s %14s %8s", "Metric (ns/op, bytes/op)", "Baseline", "Current", "Change"));
+        for (Map.Entry<String, Double> metric : current.entrySet()) {
+            Double before = baseline.get(metric.getKey());
+            double after = metric.getValue();
+            if (before == null) {
+                System.out.println(String.format("%-100s %14s %14.1f %8s", metric.getKey(), "-", after, "new"));
+                continue;
+            }
+            double change = before == 0 ? (after == 0 ? 0 : 1) : (after - before) / before;
+            boolean regressed = change > tolerance && after - before > 1;
+            if (regressed) regressions++;
+            System.out.println(String.format("%-100s %14.1f %14.1f %+7.0f%%%s", metric.getKey(), before, after, change * 100,
+                    regressed ? " REGRESSION" : ""));
+        }
+        System.out.println(regressions + " regression(s) beyond " + Math.round(tolerance * 100) + "%");
+        return regressions;
+    }
+
+    private static Map<String, Double> read(File file) throws IOException {
+        Map<String, Double> metrics = new TreeMap<String, Double>();
+        if (!file.isFile()) {
+            System.out.println("No baseline at " + file.getAbsolutePath() + ", run with -Dbenchmark.updateBaseline=true to create it");
+            return metrics;
+        }
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        for (String name : properties.stringPropertyNames()) {
+            metrics.put(name, Double.valueOf(properties.getProperty(name)));
+        }
+        return metrics;
+    }
+
+    private static void write(Map<String, Double> metrics, File file) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+            properties.setProperty(metric.getKey(), String.format(Locale.ROOT, "%.1f", metric.getValue()));
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "Applitools plugin benchmark baseline: average ns/op and normalized allocation bytes/op\n" +
+                    "Recorded on " + describeMachine());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the JVM, OS and processor count the benchmarks ran with, so a baseline can be matched to its machine.
+     */
+    private static String describeMachine() {
+        return System.getProperty("java.vm.name") + " " + System.getProperty("java.version") + ", " +
+                System.getProperty("os.name") + " " + System.getProperty("os.version") + " " + System.getProperty("os.arch") +
+                ", " + Runtime.getRuntime().availableProcessors() + " processors";
+    }
+}
@@ -0,0 +1,74 @@
+package com.applitools.teamcity.buildFeature;
+
+import com.applitools.teamcity.Constants;
+import com.applitools.teamcity.testkit.Stubs;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the Applitools feature lookup through {@link ApplitoolsFeatureIndex} with a scan of the feature list.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FeatureLookupBenchmark {
+
+    @Param({"1", "5", "20"})
+    public int featureCount;
+
+    private SBuildType buildType;
+    private ApplitoolsFeatureIndex index;
+
+    @Setup
+    public void setUp() {
+        List<SBuildFeatureDescriptor> features = new ArrayList<SBuildFeatureDescriptor>();
+        for (int i = 1; i <= featureCount; i++) {
+            Map<String, Object> answers = new HashMap<String, Object>();
+            answers.put("getId", "BUILD_EXT_" + i);
+            answers.put("getType", i == featureCount ? Constants.APPLITOOLS_BUILD_FEATURE_TYPE : "feature-" + i);
+            answers.put("getParameters", Collections.emptyMap());
+            features.add(Stubs.of(SBuildFeatureDescriptor.class, answers));
+        }
+        Map<String, Object> answers = new HashMap<String, Object>();
+        answers.put("getBuildTypeId", "bt42");
+        answers.put("getBuildFeatures", features);
+        buildType = Stubs.of(SBuildType.class, answers);
+        // a dispatcher of its own, no server events reach the index during the benchmark
+        index = new ApplitoolsFeatureIndex(EventDispatcher.create(BuildServerListener.class));
+    }
+
+    /** The original lookup, scanning the feature list of the build configuration on every call. */
+    @Benchmark
+    public SBuildFeatureDescriptor scan() {
+        Collection<SBuildFeatureDescriptor> features = buildType.getBuildFeatures();
+        for (SBuildFeatureDescriptor feature : features) {
+            if (feature.getType().equals(Constants.APPLITOOLS_BUILD_FEATURE_TYPE)) {
+                return feature;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public SBuildFeatureDescriptor index() {
+        return index.getApplitoolsBuildFeature(buildType);
+    }
+}
@@ -0,0 +1,64 @@
+package com.applitools.teamcity.pageExtension;
+
+import com.applitools.teamcity.Common;
+import com.applitools.teamcity.Constants;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the iframe URL generation of {@link IframeUrlBuilder} with the original per-view implementation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IframeUrlBenchmark {
+
+    private final String serverUrl = Constants.DEFAULT_APPLITOOLS_SERVER_URL;
+    private final String buildTypeId = "MyProject_UiTests";
+    private final String buildNumber = "1024";
+    private IframeUrlBuilder builder;
+    private long nextBuildId;
+
+    @Setup
+    public void setUp() {
+        builder = new IframeUrlBuilder(1000);
+        nextBuildId = 0;
+    }
+
+    /** The original implementation, which parsed the URL twice and compiled the regex on every view. */
+    @Benchmark
+    public String legacy() {
+        String apiServerURL = serverUrl + "/app/batchesnoauth/?startInfoBatchId=" + Common.generateBatchId(buildTypeId, buildNumber, 42) +
+                "&hideBatchList=true&intercom=false&agentId=eyes-teamcity-1.4.0";
+        try {
+            URI url = new URI(apiServerURL, true, Charset.forName("UTF-8").toString());
+            String hostName = url.getHost();
+            hostName = hostName.replaceAll("^([^.]+)api.(.*)$", "$1.$2");
+            return new URI(url.getScheme(), null, hostName, url.getPort(), url.getPath(), url.getQuery()).toString();
+        } catch (URIException e) {
+            return apiServerURL;
+        }
+    }
+
+    /** Repeated views of the same build. */
+    @Benchmark
+    public String cachedBuild() {
+        return builder.getUrl(serverUrl, buildTypeId, buildNumber, 42);
+    }
+
+    /** First view of every build, the app URL of the server is cached. */
+    @Benchmark
+    public String newBuild() {
+        return builder.getUrl(serverUrl, buildTypeId, buildNumber, nextBuildId++);
+    }
+}
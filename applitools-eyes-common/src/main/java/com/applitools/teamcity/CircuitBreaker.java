@@ -0,0 +1,125 @@
+package com.applitools.teamcity;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A circuit breaker guarding calls to a single Applitools server.
+ * <p>
+ * After {@code failureThreshold} consecutive failures the circuit opens and calls fail fast. Once
+ * {@code openDurationMs} passed, a single probe call is let through (half-open): its success closes the circuit,
+ * its failure opens it again.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Notified on every state change, outside of the breaker lock.
+     */
+    public interface Listener {
+        void stateChanged(String endpoint, State from, State to);
+    }
+
+    private final String endpoint;
+    private final int failureThreshold;
+    private final long openDurationMs;
+    private final Listener listener;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong[] transitions = {new AtomicLong(), new AtomicLong(), new AtomicLong()};
+
+    public CircuitBreaker(String endpoint, int failureThreshold, long openDurationMs, Listener listener) {
+        this.endpoint = endpoint;
+        this.failureThreshold = failureThreshold;
+        this.openDurationMs = openDurationMs;
+        this.listener = listener;
+    }
+
+    /**
+     * @return true if the call may proceed; it must then be followed by {@link #onSuccess()} or {@link #onFailure()}.
+     */
+    public boolean tryAcquire() {
+        State from;
+        synchronized (this) {
+            from = state;
+            if (state == State.CLOSED) return true;
+            if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDurationMs) {
+                state = State.HALF_OPEN;
+            }
+            if (state == State.HALF_OPEN && !probeInFlight) {
+                probeInFlight = true;
+            } else {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+        fireStateChanged(from, State.HALF_OPEN);
+        return true;
+    }
+
+    public void onSuccess() {
+        State from;
+        synchronized (this) {
+            from = state;
+            consecutiveFailures = 0;
+            probeInFlight = false;
+            state = State.CLOSED;
+        }
+        fireStateChanged(from, State.CLOSED);
+    }
+
+    public void onFailure() {
+        State from;
+        State to;
+        synchronized (this) {
+            from = state;
+            probeInFlight = false;
+            if (state == State.HALF_OPEN || ++consecutiveFailures >= failureThreshold) {
+                state = State.OPEN;
+                openedAt = System.currentTimeMillis();
+            }
+            to = state;
+        }
+        fireStateChanged(from, to);
+    }
+
+    private void fireStateChanged(State from, State to) {
+        if (from == to) return;
+        transitions[to.ordinal()].incrementAndGet();
+        if (listener != null) {
+            listener.stateChanged(endpoint, from, to);
+        }
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return how many calls failed fast because the circuit was open.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return how many times the circuit moved to the given state.
+     */
+    public long getTransitionCount(State to) {
+        return transitions[to.ordinal()].get();
+    }
+
+    public String describe() {
+        return endpoint + ": " + getState() +
+                " (opened " + getTransitionCount(State.OPEN) + " times, " + getRejectedCount() + " calls rejected)";
+    }
+}
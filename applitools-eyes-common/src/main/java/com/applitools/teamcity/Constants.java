@@ -13,6 +13,7 @@ public class Constants {
     public static final String APPLITOOLS_BATCH_SEQUENCE_ENV_VAR = "APPLITOOLS_BATCH_SEQUENCE";
     public static final String APPLITOOLS_DONT_CLOSE_BATCHES_ENV_VAR = "APPLITOOLS_DONT_CLOSE_BATCHES";
     public static final String APPLITOOLS_API_KEY_ENV_VAR = "APPLITOOLS_API_KEY";
+    public static final String APPLITOOLS_CONCURRENCY_ENV_VAR = "APPLITOOLS_CONCURRENCY";
 
 
     /* Applitools Settings Page */
@@ -20,7 +21,9 @@ public class Constants {
     public static final String APPLITOOLS_SERVER_URL_FIELD = "applitoolsPlugin.serverURL";
     public static final String APPLITOOLS_API_KEY_FIELD = "applitoolsPlugin.apiKey";
     public static final String APPLITOOLS_NOTIFY_BY_COMPLETION_FIELD = "applitoolsPlugin.notifyByCompletion";
+    public static final String APPLITOOLS_CLOSE_BATCH_AFTER_STEP_FIELD = "applitoolsPlugin.closeBatchAfterStep";
     public static final String APPLITOOLS_SCM_INTEGRATION_ENABLED_FIELD = "applitoolsPlugin.eyesScmIntegrationEnabled";
+    public static final String APPLITOOLS_CONCURRENCY_LIMIT_FIELD = "applitoolsPlugin.concurrencyLimit";
 
 
     /* Applitools Build Feature Common */
@@ -31,6 +34,21 @@ public class Constants {
 
     public static final String BATCH_NOTIFICATION_PATH = "/api/sessions/batches/%s/close/bypointerid";
     public final static String BATCH_BIND_POINTERS_PATH = "/api/sessions/batches/bindpointers/%s";
+    public static final String BATCH_STATUS_PATH = "/api/sessions/batches/%s/bypointerid";
+
+    /* Build parameters set by the server */
+    public static final String APPLITOOLS_CONCURRENCY_PARAMETER = "applitools.concurrency";
+
+    /* Service message sent by the agent to the server */
+    public static final String EYES_SERVICE_MESSAGE = "applitoolsEyes";
+    public static final String EYES_EVENT_CLOSE_BATCH = "closeBatch";
+
+    /* Internal properties, read on both server and agent */
+    public static final String RETRY_MAX_ATTEMPTS_PROPERTY = "teamcity.applitools.retry.maxAttempts";
+    public static final String RETRY_BASE_DELAY_PROPERTY = "teamcity.applitools.retry.baseDelayMs";
+    public static final String RETRY_MAX_DELAY_PROPERTY = "teamcity.applitools.retry.maxDelayMs";
+    public static final String CIRCUIT_FAILURE_THRESHOLD_PROPERTY = "teamcity.applitools.circuit.failureThreshold";
+    public static final String CIRCUIT_OPEN_DURATION_PROPERTY = "teamcity.applitools.circuit.openDurationMs";
 
 
     private Constants() {
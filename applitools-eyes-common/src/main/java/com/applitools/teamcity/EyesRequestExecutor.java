@@ -0,0 +1,152 @@
+package com.applitools.teamcity;
+
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Executes requests to the Applitools server with retries and a circuit breaker per server URL.
+ * <p>
+ * Connection errors, 408, 429 and 5xx responses are retried with an exponential backoff and full jitter. Other
+ * responses are returned to the caller as is. While the circuit of a server is open, requests to it fail fast with
+ * {@link CircuitOpenException}.
+ */
+public class EyesRequestExecutor {
+
+    /**
+     * A single attempt of a request.
+     */
+    public interface Request {
+        /**
+         * @return the HTTP status code of the response.
+         */
+        int execute() throws IOException;
+    }
+
+    public static class CircuitOpenException extends IOException {
+        public CircuitOpenException(String endpoint) {
+            super("Requests to " + endpoint + " are suspended after repeated failures");
+        }
+    }
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final int failureThreshold;
+    private final long openDurationMs;
+    private final CircuitBreaker.Listener listener;
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    /**
+     * Creates an executor with the plugin-wide policy, set by the {@code teamcity.applitools.retry.*} and
+     * {@code teamcity.applitools.circuit.*} properties, shared by the server and the agent.
+     */
+    public EyesRequestExecutor(CircuitBreaker.Listener listener) {
+        this(TeamCityProperties.getInteger(Constants.RETRY_MAX_ATTEMPTS_PROPERTY, 3),
+                TeamCityProperties.getLong(Constants.RETRY_BASE_DELAY_PROPERTY, 500),
+                TeamCityProperties.getLong(Constants.RETRY_MAX_DELAY_PROPERTY, 10000),
+                TeamCityProperties.getInteger(Constants.CIRCUIT_FAILURE_THRESHOLD_PROPERTY, 5),
+                TeamCityProperties.getLong(Constants.CIRCUIT_OPEN_DURATION_PROPERTY, 30000),
+                listener);
+    }
+
+    public EyesRequestExecutor(int maxAttempts, long baseDelayMs, long maxDelayMs,
+                               int failureThreshold, long openDurationMs, CircuitBreaker.Listener listener) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.failureThreshold = failureThreshold;
+        this.openDurationMs = openDurationMs;
+        this.listener = listener;
+    }
+
+    /**
+     * Executes the request against the given Applitools server.
+     *
+     * @param serverUrl the server URL, which names the circuit of the request. Requests whose failures must not
+     *                  suspend the other calls to the server use a key of their own, such as the URL with a suffix.
+     * @return the status code of the last attempt.
+     * @throws CircuitOpenException if the circuit of the server is open.
+     * @throws IOException          if the last attempt failed to complete.
+     */
+    public int execute(String serverUrl, Request request) throws IOException {
+        return execute(serverUrl, request, maxAttempts);
+    }
+
+    /**
+     * Executes the request with at most the given number of attempts, for callers that retry later on their own.
+     *
+     * @see #execute(String, Request)
+     */
+    public int execute(String serverUrl, Request request, int attempts) throws IOException {
+        int maxAttempts = Math.max(1, attempts);
+        CircuitBreaker circuitBreaker = getCircuitBreaker(serverUrl);
+        for (int attempt = 1; ; attempt++) {
+            if (!circuitBreaker.tryAcquire()) {
+                throw new CircuitOpenException(circuitBreaker.getEndpoint());
+            }
+            int statusCode;
+            try {
+                statusCode = request.execute();
+            } catch (IOException e) {
+                circuitBreaker.onFailure();
+                if (attempt >= maxAttempts) throw e;
+                sleep(attempt);
+                continue;
+            }
+            if (!isRetryable(statusCode)) {
+                circuitBreaker.onSuccess();
+                return statusCode;
+            }
+            circuitBreaker.onFailure();
+            if (attempt >= maxAttempts) return statusCode;
+            sleep(attempt);
+        }
+    }
+
+    public CircuitBreaker getCircuitBreaker(String serverUrl) {
+        String endpoint = Common.getServerUrl(serverUrl);
+        CircuitBreaker circuitBreaker = circuitBreakers.get(endpoint);
+        if (circuitBreaker == null) {
+            CircuitBreaker created = new CircuitBreaker(endpoint, failureThreshold, openDurationMs, listener);
+            circuitBreaker = circuitBreakers.putIfAbsent(endpoint, created);
+            if (circuitBreaker == null) circuitBreaker = created;
+        }
+        return circuitBreaker;
+    }
+
+    public Collection<CircuitBreaker> getCircuitBreakers() {
+        return new ArrayList<CircuitBreaker>(circuitBreakers.values());
+    }
+
+    public static boolean isSuccessful(int statusCode) {
+        return statusCode >= 200 && statusCode < 300;
+    }
+
+    public static boolean isRetryable(int statusCode) {
+        return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * @return a random delay between zero and the exponential backoff of the attempt.
+     */
+    long getDelayMs(int attempt) {
+        long backoff = baseDelayMs << Math.min(attempt - 1, 20);
+        return ThreadLocalRandom.current().nextLong(Math.min(maxDelayMs, backoff) + 1);
+    }
+
+    private void sleep(int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(getDelayMs(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.applitools.teamcity;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An HTTP client with a pool of keep-alive connections, shared by all calls to the Applitools server.
+ * <p>
+ * Counts the requests it executes and the connections it had to open, so connection reuse can be measured.
+ */
+public class PooledHttpClient {
+
+    private final CountingConnectionManager connectionManager;
+    private final HttpClient httpClient;
+    private final AtomicLong requests = new AtomicLong();
+
+    public PooledHttpClient(int maxConnectionsPerHost, int maxTotalConnections, int connectTimeoutMs, int socketTimeoutMs) {
+        HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setMaxTotalConnections(maxTotalConnections);
+        params.setConnectionTimeout(connectTimeoutMs);
+        params.setSoTimeout(socketTimeoutMs);
+        params.setStaleCheckingEnabled(true);
+        connectionManager = new CountingConnectionManager();
+        connectionManager.setParams(params);
+        httpClient = new HttpClient(connectionManager);
+        // Do not wait for a free pooled connection longer than for a new one.
+        httpClient.getParams().setConnectionManagerTimeout(connectTimeoutMs);
+    }
+
+    /**
+     * Executes the method. The caller must release the connection of the method once the response is read.
+     */
+    public int executeMethod(HttpMethod method) throws IOException {
+        requests.incrementAndGet();
+        return httpClient.executeMethod(method);
+    }
+
+    public HttpConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    public void closeIdleConnections(long idleTimeoutMs) {
+        connectionManager.closeIdleConnections(idleTimeoutMs);
+    }
+
+    public void shutdown() {
+        connectionManager.shutdown();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return how many new connections were opened, each of them paying for a TCP (and TLS) handshake.
+     */
+    public long getOpenedConnectionCount() {
+        return connectionManager.opened.get();
+    }
+
+    /**
+     * @return the share of requests that were sent over an already open connection.
+     */
+    public double getConnectionReuseRate() {
+        long total = connectionManager.leased.get();
+        return total == 0 ? 0 : 1 - (double) connectionManager.opened.get() / total;
+    }
+
+    public int getPooledConnectionCount() {
+        return connectionManager.getConnectionsInPool();
+    }
+
+    public String describe() {
+        return "requests=" + getRequestCount() +
+                ", handshakes=" + getOpenedConnectionCount() +
+                ", pooled=" + getPooledConnectionCount() +
+                ", reuseRate=" + String.format("%.2f", getConnectionReuseRate());
+    }
+
+    private static class CountingConnectionManager extends MultiThreadedHttpConnectionManager {
+        private final AtomicLong leased = new AtomicLong();
+        private final AtomicLong opened = new AtomicLong();
+
+        @Override
+        public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout)
+                throws ConnectionPoolTimeoutException {
+            HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+            leased.incrementAndGet();
+            if (!connection.isOpen()) {
+                opened.incrementAndGet();
+            }
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package com.applitools.teamcity.batchStatus;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Polls the status of all in-flight batches: those of running builds, from build start through finish, and those
+ * followed by viewers of the build page.
+ * <p>
+ * A single thread polls in rounds, every {@code teamcity.applitools.batchPoller.roundIntervalMs}, through the shared
+ * {@link BatchStatusClient} connection pool. Each batch has its own interval: it is polled every
+ * {@code minIntervalMs} while its tests progress, and the interval doubles up to {@code maxIntervalMs} while nothing
+ * changes or the server fails. A round makes at most {@code maxRequestsPerRound} calls, batches followed by viewers
+ * first and then the longest overdue; the others wait for the next round. Each call is a single attempt without
+ * retries: a failed batch is polled again after its backed off interval.
+ * <p>
+ * Every status read is put in the {@link BatchStatusCache}, and changes are sent to the {@link Listener}s of the
+ * batch. Listeners are called on a small pool of delivery threads, never on the poller thread, so a slow browser
+ * connection does not hold up the polling of the other batches. A completed batch is polled every
+ * {@code maxIntervalMs} until its build finishes, since a later step may still add tests. A batch is dropped when
+ * its build finished and nobody follows it any more, or when it is completed and only followed by viewers.
+ */
+public class BatchPoller {
+
+    static final String ROUND_INTERVAL_PROPERTY = "teamcity.applitools.batchPoller.roundIntervalMs";
+    static final String MIN_INTERVAL_PROPERTY = "teamcity.applitools.batchPoller.minIntervalMs";
+    static final String MAX_INTERVAL_PROPERTY = "teamcity.applitools.batchPoller.maxIntervalMs";
+    static final String MAX_REQUESTS_PER_ROUND_PROPERTY = "teamcity.applitools.batchPoller.maxRequestsPerRound";
+    static final String DELIVERY_THREADS_PROPERTY = "teamcity.applitools.batchPoller.deliveryThreads";
+
+    /**
+     * Receives the progress of a batch. Calls for a listener are made one at a time on a delivery thread. A listener
+     * slower than the batch changes only gets the latest of the changes made while it was busy.
+     */
+    public interface Listener {
+        /**
+         * @param summary the current batch status, or null if the server does not know the batch yet.
+         */
+        void onProgress(@Nullable BatchSummary summary);
+
+        void onError(@NotNull String message);
+    }
+
+    private static final Comparator<Due> POLL_ORDER = new Comparator<Due>() {
+        @Override
+        public int compare(Due first, Due second) {
+            if (first.followed != second.followed) return first.followed ? -1 : 1;
+            return first.dueAt < second.dueAt ? -1 : first.dueAt > second.dueAt ? 1 : 0;
+        }
+    };
+
+    private final BatchStatusClient batchStatusClient;
+    private final BatchStatusCache batchStatusCache;
+    private final ScheduledExecutorService pollExecutor;
+    private final ExecutorService deliveryExecutor;
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+    private final long minIntervalMs;
+    private final long maxIntervalMs;
+    private final int maxRequestsPerRound;
+    private final long roundIntervalMs;
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public BatchPoller(@NotNull BatchStatusClient batchStatusClient, @NotNull BatchStatusCache batchStatusCache) {
+        this(batchStatusClient, batchStatusCache,
+                TeamCityProperties.getLong(ROUND_INTERVAL_PROPERTY, 1000),
+                TeamCityProperties.getLong(MIN_INTERVAL_PROPERTY, 2000),
+                TeamCityProperties.getLong(MAX_INTERVAL_PROPERTY, 60000),
+                TeamCityProperties.getInteger(MAX_REQUESTS_PER_ROUND_PROPERTY, 10),
+                TeamCityProperties.getInteger(DELIVERY_THREADS_PROPERTY, 4));
+    }
+
+    BatchPoller(@NotNull BatchStatusClient batchStatusClient, @NotNull BatchStatusCache batchStatusCache,
+                long roundIntervalMs, long minIntervalMs, long maxIntervalMs, int maxRequestsPerRound, int deliveryThreads) {
+        this.batchStatusClient = batchStatusClient;
+        this.batchStatusCache = batchStatusCache;
+        this.minIntervalMs = minIntervalMs;
+        this.maxIntervalMs = maxIntervalMs;
+        this.maxRequestsPerRound = maxRequestsPerRound;
+        this.pollExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Applitools batch poller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // each subscriber has at most one delivery queued, the queue is bounded by the number of subscribers
+        this.deliveryExecutor = Executors.newFixedThreadPool(deliveryThreads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NotNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Applitools batch progress delivery " + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.roundIntervalMs = roundIntervalMs;
+    }
+
+    /**
+     * Schedules the polling rounds on first use, so the poller thread is not started while batch statuses are off.
+     */
+    private void ensureStarted() {
+        if (!started.compareAndSet(false, true)) return;
+        pollExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pollRound();
+                } catch (RuntimeException e) {
+                    // an exception would cancel the periodic task
+                    Loggers.SERVER.warn("[Applitools] Unexpected error while polling batch statuses", e);
+                }
+            }
+        }, roundIntervalMs, roundIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts polling the batch of a build that started, when reading batch statuses is enabled.
+     */
+    public void track(@NotNull String serverUrl, @NotNull String apiKey, @NotNull String batchId) {
+        if (!BatchStatusClient.isEnabled()) return;
+        ensureStarted();
+        while (true) {
+            Batch batch = getOrCreate(serverUrl, apiKey, batchId);
+            synchronized (batch) {
+                if (batch.removed) continue;
+                batch.tracked = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops polling the batch of a build that finished, unless viewers still follow it.
+     */
+    public void untrack(@NotNull String batchId) {
+        Batch batch = batches.get(batchId);
+        if (batch == null) return;
+        synchronized (batch) {
+            batch.tracked = false;
+            removeIfUnused(batch);
+        }
+    }
+
+    /**
+     * Starts sending the progress of the batch to the listener, the last known progress right away if there is one.
+     * The batch is polled in the next round.
+     */
+    public void subscribe(@NotNull String serverUrl, @NotNull String apiKey, @NotNull String batchId, @NotNull Listener listener) {
+        ensureStarted();
+        while (true) {
+            Batch batch = getOrCreate(serverUrl, apiKey, batchId);
+            synchronized (batch) {
+                if (batch.removed) continue;
+                if (batch.listeners.isEmpty()) {
+                    batch.intervalMs = minIntervalMs;
+                    batch.nextPollAt = Math.min(batch.nextPollAt, System.currentTimeMillis());
+                }
+                Subscriber subscriber = new Subscriber(listener);
+                batch.listeners.add(subscriber);
+                if (batch.polled) {
+                    subscriber.offer(new Event(batch.last, null));
+                }
+                return;
+            }
+        }
+    }
+
+    public void unsubscribe(@NotNull String batchId, @NotNull Listener listener) {
+        Batch batch = batches.get(batchId);
+        if (batch == null) return;
+        synchronized (batch) {
+            for (Subscriber subscriber : batch.listeners) {
+                if (subscriber.listener == listener) {
+                    subscriber.cancelled = true;
+                    batch.listeners.remove(subscriber);
+                }
+            }
+            removeIfUnused(batch);
+        }
+    }
+
+    private Batch getOrCreate(String serverUrl, String apiKey, String batchId) {
+        Batch batch = batches.get(batchId);
+        if (batch == null) {
+            Batch created = new Batch(serverUrl, apiKey, batchId, System.currentTimeMillis());
+            batch = batches.putIfAbsent(batchId, created);
+            if (batch == null) {
+                batch = created;
+            }
+        }
+        return batch;
+    }
+
+    private void removeIfUnused(Batch batch) {
+        if (!batch.tracked && batch.listeners.isEmpty()) {
+            remove(batch);
+        }
+    }
+
+    private void remove(Batch batch) {
+        batch.removed = true;
+        batches.remove(batch.batchId, batch);
+    }
+
+    void pollRound() {
+        rounds.incrementAndGet();
+        long now = System.currentTimeMillis();
+        List<Due> due = new ArrayList<Due>();
+        for (Batch batch : batches.values()) {
+            long dueAt = batch.nextPollAt;
+            if (dueAt <= now) {
+                due.add(new Due(batch, !batch.listeners.isEmpty(), dueAt));
+            }
+        }
+        if (due.isEmpty()) return;
+        Collections.sort(due, POLL_ORDER);
+        int count = Math.min(due.size(), maxRequestsPerRound);
+        for (int i = 0; i < count; i++) {
+            poll(due.get(i).batch);
+        }
+        deferred.addAndGet(due.size() - count);
+    }
+
+    private void poll(Batch batch) {
+        if (batch.removed) return;
+        polls.incrementAndGet();
+        BatchSummary summary;
+        try {
+            // a single attempt, so a failing server cannot hold the thread past the round; the next poll retries
+            summary = batchStatusClient.fetch(batch.serverUrl, batch.apiKey, batch.batchId, false);
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            synchronized (batch) {
+                Event event = new Event(null, String.valueOf(e.getMessage()));
+                for (Subscriber subscriber : batch.listeners) {
+                    subscriber.offer(event);
+                }
+                batch.scheduleNext(false);
+            }
+            return;
+        }
+        batchStatusCache.put(batch.batchId, summary);
+
+        String state = getState(summary);
+        synchronized (batch) {
+            if (batch.removed) return;
+            boolean changed = !batch.polled || !state.equals(batch.lastState);
+            batch.polled = true;
+            batch.last = summary;
+            batch.lastState = state;
+            if (changed) {
+                Event event = new Event(summary, null);
+                for (Subscriber subscriber : batch.listeners) {
+                    subscriber.offer(event);
+                }
+            }
+            if (summary != null && summary.isCompleted()) {
+                if (!batch.tracked) {
+                    remove(batch);
+                    return;
+                }
+                // the build may still add tests, which reopens the batch
+                batch.intervalMs = maxIntervalMs;
+                batch.nextPollAt = System.currentTimeMillis() + maxIntervalMs;
+                return;
+            }
+            batch.scheduleNext(changed);
+        }
+    }
+
+    private static String getState(BatchSummary summary) {
+        if (summary == null) return "";
+        return summary.isCompleted() + ":" + summary.getRunningCount() + ":" + summary.getPassedCount() + ":" +
+                summary.getFailedCount() + ":" + summary.getUnresolvedCount() + ":" + summary.getNewCount() + ":" +
+                summary.getStepsCount();
+    }
+
+    public int getBatchCount() {
+        return batches.size();
+    }
+
+    public int getSubscriberCount() {
+        int count = 0;
+        for (Batch batch : batches.values()) {
+            count += batch.listeners.size();
+        }
+        return count;
+    }
+
+    public long getRoundCount() {
+        return rounds.get();
+    }
+
+    public long getPollCount() {
+        return polls.get();
+    }
+
+    /**
+     * @return how many times a due batch waited for the next round because the round's request budget was spent.
+     */
+    public long getDeferredCount() {
+        return deferred.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public String describe() {
+        return "batches=" + getBatchCount() +
+                ", subscribers=" + getSubscriberCount() +
+                ", rounds=" + getRoundCount() +
+                ", polls=" + getPollCount() +
+                ", deferred=" + getDeferredCount() +
+                ", failures=" + getFailureCount();
+    }
+
+    public void shutdown() {
+        pollExecutor.shutdownNow();
+        deliveryExecutor.shutdownNow();
+        Loggers.SERVER.info("[Applitools] Batch poller stopped: " + describe());
+        batches.clear();
+    }
+
+    /**
+     * A batch due for polling, with its order taken when the round started.
+     */
+    private static class Due {
+        private final Batch batch;
+        private final boolean followed;
+        private final long dueAt;
+
+        private Due(Batch batch, boolean followed, long dueAt) {
+            this.batch = batch;
+            this.followed = followed;
+            this.dueAt = dueAt;
+        }
+    }
+
+    /**
+     * A progress change, or a failure to read the batch status when the message is set.
+     */
+    private static class Event {
+        private final BatchSummary summary;
+        private final String errorMessage;
+
+        private Event(BatchSummary summary, String errorMessage) {
+            this.summary = summary;
+            this.errorMessage = errorMessage;
+        }
+    }
+
+    /**
+     * Delivers the events of a batch to one listener on the delivery pool. Only the latest undelivered event is
+     * kept, so a listener that blocks holds up neither the poller nor the other listeners.
+     */
+    private class Subscriber implements Runnable {
+        private final Listener listener;
+        private final AtomicReference<Event> next = new AtomicReference<Event>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean cancelled;
+
+        private Subscriber(Listener listener) {
+            this.listener = listener;
+        }
+
+        private void offer(Event event) {
+            if (cancelled) return;
+            next.set(event);
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    deliveryExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // the poller is shutting down
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Event event = next.getAndSet(null);
+                if (event == null) {
+                    scheduled.set(false);
+                    // an event offered after the last read and before the flag was cleared is delivered here
+                    if (next.get() == null || !scheduled.compareAndSet(false, true)) return;
+                    continue;
+                }
+                if (cancelled) continue;
+                try {
+                    if (event.errorMessage != null) {
+                        listener.onError(event.errorMessage);
+                    } else {
+                        listener.onProgress(event.summary);
+                    }
+                } catch (RuntimeException e) {
+                    Loggers.SERVER.warn("[Applitools] Failed to send the progress of a batch", e);
+                }
+            }
+        }
+    }
+
+    private class Batch {
+        private final String serverUrl;
+        private final String apiKey;
+        private final String batchId;
+        private final CopyOnWriteArrayList<Subscriber> listeners = new CopyOnWriteArrayList<Subscriber>();
+        private volatile long nextPollAt;
+        private volatile boolean removed;
+        private long intervalMs = minIntervalMs;
+        private boolean tracked;
+        private boolean polled;
+        private BatchSummary last;
+        private String lastState;
+
+        private Batch(String serverUrl, String apiKey, String batchId, long nextPollAt) {
+            this.serverUrl = serverUrl;
+            this.apiKey = apiKey;
+            this.batchId = batchId;
+            this.nextPollAt = nextPollAt;
+        }
+
+        private void scheduleNext(boolean changed) {
+            intervalMs = changed ? minIntervalMs : Math.min(intervalMs * 2, maxIntervalMs);
+            nextPollAt = System.currentTimeMillis() + intervalMs;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.applitools.teamcity.batchStatus;
+
+import com.applitools.teamcity.ExpiringLruCache;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the batch status by batch id, so page views do not each call the Applitools server.
+ * <p>
+ * Running batches are kept for a short time, completed batches do not change any more and are kept until evicted.
+ * Concurrent requests for a batch that is not cached share a single call to the Applitools server.
+ */
+public class BatchStatusCache {
+
+    static final String CACHE_SIZE_PROPERTY = "teamcity.applitools.batchStatus.cacheSize";
+    static final String RUNNING_TTL_PROPERTY = "teamcity.applitools.batchStatus.runningTtlMs";
+    static final String COMPLETED_TTL_PROPERTY = "teamcity.applitools.batchStatus.completedTtlMs";
+
+    // Cached for batches the server does not know yet, they are treated like running ones.
+    private static final BatchSummary NOT_FOUND = new BatchSummary();
+
+    private final BatchStatusClient batchStatusClient;
+    private final ExpiringLruCache<String, BatchSummary> summaries;
+    private final ConcurrentMap<String, FutureTask<BatchSummary>> inFlight = new ConcurrentHashMap<String, FutureTask<BatchSummary>>();
+    private final long runningTtlMs;
+    private final long completedTtlMs;
+
+    private final AtomicLong upstreamCalls = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public BatchStatusCache(@NotNull BatchStatusClient batchStatusClient) {
+        this(batchStatusClient,
+                TeamCityProperties.getInteger(CACHE_SIZE_PROPERTY, 10000),
+                TeamCityProperties.getLong(RUNNING_TTL_PROPERTY, 15000),
+                TeamCityProperties.getLong(COMPLETED_TTL_PROPERTY, ExpiringLruCache.NO_EXPIRATION));
+    }
+
+    BatchStatusCache(@NotNull BatchStatusClient batchStatusClient, int cacheSize, long runningTtlMs, long completedTtlMs) {
+        this.batchStatusClient = batchStatusClient;
+        this.summaries = new ExpiringLruCache<String, BatchSummary>(cacheSize);
+        this.runningTtlMs = runningTtlMs;
+        this.completedTtlMs = completedTtlMs;
+    }
+
+    /**
+     * @param batchId the {@link com.applitools.teamcity.Common#generateBatchId} value of the build.
+     * @return the batch status, or null if the server does not know the batch yet.
+     * @throws IOException if the status is not cached and could not be read from the server.
+     */
+    @Nullable
+    public BatchSummary getSummary(@NotNull final String serverUrl, @NotNull final String apiKey, @NotNull final String batchId)
+            throws IOException {
+        BatchSummary summary = summaries.get(batchId);
+        if (summary == null) {
+            summary = load(serverUrl, apiKey, batchId);
+        }
+        return summary == NOT_FOUND ? null : summary;
+    }
+
+    /**
+     * @return true if {@link #getSummary} would answer for the batch without calling the Applitools server.
+     */
+    public boolean isCached(@NotNull String batchId) {
+        return summaries.containsKey(batchId);
+    }
+
+    /**
+     * Drops the cached status of the batch, the next request reads it from the server.
+     */
+    public void invalidate(@NotNull String batchId) {
+        summaries.remove(batchId);
+    }
+
+    /**
+     * Caches a status read by someone else, such as the {@link BatchPoller}.
+     *
+     * @param summary the batch status, or null if the server does not know the batch yet.
+     */
+    public void put(@NotNull String batchId, @Nullable BatchSummary summary) {
+        store(batchId, summary);
+    }
+
+    private BatchSummary store(String batchId, BatchSummary summary) {
+        if (summary == null) {
+            summary = NOT_FOUND;
+        }
+        summaries.put(batchId, summary, summary == NOT_FOUND || BatchSummary.RUNNING.equals(summary.getStatus())
+                ? runningTtlMs : completedTtlMs);
+        return summary;
+    }
+
+    private BatchSummary load(final String serverUrl, final String apiKey, final String batchId) throws IOException {
+        FutureTask<BatchSummary> task = new FutureTask<BatchSummary>(new Callable<BatchSummary>() {
+            @Override
+            public BatchSummary call() throws IOException {
+                upstreamCalls.incrementAndGet();
+                BatchSummary summary = batchStatusClient.fetch(serverUrl, apiKey, batchId);
+                return store(batchId, summary);
+            }
+        });
+        FutureTask<BatchSummary> running = inFlight.putIfAbsent(batchId, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(batchId, task);
+            }
+        } else {
+            collapsed.incrementAndGet();
+            task = running;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the status of batch " + batchId);
+        } catch (ExecutionException e) {
+            failures.incrementAndGet();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException("Failed to read the status of batch " + batchId, cause);
+        }
+    }
+
+    public int size() {
+        return summaries.size();
+    }
+
+    public long getHitCount() {
+        return summaries.getHitCount();
+    }
+
+    public long getMissCount() {
+        return summaries.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return summaries.getEvictionCount();
+    }
+
+    public long getExpirationCount() {
+        return summaries.getExpirationCount();
+    }
+
+    public double getHitRate() {
+        return summaries.getHitRate();
+    }
+
+    /**
+     * @return how many times the Applitools server was called.
+     */
+    public long getUpstreamCallCount() {
+        return upstreamCalls.get();
+    }
+
+    /**
+     * @return how many requests waited for a call made for another request of the same batch.
+     */
+    public long getCollapsedCount() {
+        return collapsed.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public String describe() {
+        return summaries.describe() +
+                ", upstreamCalls=" + getUpstreamCallCount() +
+                ", collapsed=" + getCollapsedCount() +
+                ", failures=" + getFailureCount();
+    }
+
+    public void shutdown() {
+        Loggers.SERVER.info("[Applitools] Batch status cache: " + describe());
+        summaries.clear();
+    }
+}
@@ -0,0 +1,134 @@
+package com.applitools.teamcity.batchStatus;
+
+import com.applitools.teamcity.Common;
+import com.applitools.teamcity.Constants;
+import com.applitools.teamcity.EyesRequestExecutor;
+import com.applitools.teamcity.http.ApplitoolsHttpClient;
+import com.applitools.teamcity.http.ApplitoolsRequestExecutor;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the batch status from the Applitools server.
+ * <p>
+ * The status endpoint and its response fields are not part of the documented Eyes API yet, so reading batch statuses
+ * is off unless {@code teamcity.applitools.batchStatus.enabled=true}. While it is off, the batch summary, the build
+ * list indicators and the progress stream are not offered, and the build results page shows the Eyes results
+ * directly. A response without the expected fields is treated as a failure, not as an empty batch.
+ * <p>
+ * Status reads have their own circuit breaker, so failing reads never suspend batch closes to the same server. A
+ * response that cannot be read as a batch status is reported after the request completed: it is neither retried
+ * nor counted as a server failure.
+ */
+public class BatchStatusClient {
+
+    public static final String ENABLED_PROPERTY = "teamcity.applitools.batchStatus.enabled";
+
+    private static final String CIRCUIT_SUFFIX = "#status";
+    private static final int MAX_RESPONSE_BYTES = 64 * 1024;
+
+    private final ApplitoolsHttpClient httpClient;
+    private final ApplitoolsRequestExecutor requestExecutor;
+    private final Gson gson = new Gson();
+
+    public BatchStatusClient(@NotNull ApplitoolsHttpClient httpClient, @NotNull ApplitoolsRequestExecutor requestExecutor) {
+        this.httpClient = httpClient;
+        this.requestExecutor = requestExecutor;
+    }
+
+    /**
+     * @return true if batch statuses may be read from the Applitools server.
+     */
+    public static boolean isEnabled() {
+        return TeamCityProperties.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * @return the batch status, or null if the server does not know the batch yet.
+     * @throws IOException if reading statuses is disabled, or the server could not be reached or answered with an
+     * error or an unexpected response.
+     */
+    @Nullable
+    public BatchSummary fetch(@NotNull String serverUrl, @NotNull String apiKey, @NotNull String batchId) throws IOException {
+        return fetch(serverUrl, apiKey, batchId, true);
+    }
+
+    /**
+     * @param retry false to make a single attempt, for callers that read the status again later anyway.
+     * @see #fetch(String, String, String)
+     */
+    @Nullable
+    public BatchSummary fetch(@NotNull String serverUrl, @NotNull String apiKey, @NotNull String batchId,
+                              boolean retry) throws IOException {
+        if (!isEnabled()) {
+            throw new IOException("Reading batch statuses is disabled, set " + ENABLED_PROPERTY + "=true to enable it");
+        }
+        URI targetUrl = new URI(serverUrl, false);
+        targetUrl.setPath(String.format(Constants.BATCH_STATUS_PATH, batchId));
+        targetUrl.setQuery("apiKey=" + apiKey);
+        final String url = targetUrl.toString();
+        final byte[][] body = new byte[1][];
+        EyesRequestExecutor.Request request = new EyesRequestExecutor.Request() {
+            @Override
+            public int execute() throws IOException {
+                GetMethod getRequest = new GetMethod(url);
+                try {
+                    int status = httpClient.executeMethod(getRequest);
+                    if (EyesRequestExecutor.isSuccessful(status)) {
+                        body[0] = read(getRequest.getResponseBodyAsStream());
+                    }
+                    return status;
+                } finally {
+                    getRequest.releaseConnection();
+                }
+            }
+        };
+        String circuit = Common.getServerUrl(serverUrl) + CIRCUIT_SUFFIX;
+        int statusCode = retry ? requestExecutor.execute(circuit, request) : requestExecutor.execute(circuit, request, 1);
+        if (statusCode == 404) {
+            return null;
+        }
+        if (!EyesRequestExecutor.isSuccessful(statusCode) || body[0] == null) {
+            throw new IOException("Batch status request for " + batchId + " failed with " + statusCode + " status");
+        }
+        return parse(body[0]);
+    }
+
+    /**
+     * @return the response body, or null if there is none; the body is cut at {@code MAX_RESPONSE_BYTES}, which
+     * a batch status never reaches.
+     */
+    @Nullable
+    private static byte[] read(@Nullable InputStream in) throws IOException {
+        if (in == null) return null;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while (out.size() < MAX_RESPONSE_BYTES && (read = in.read(buffer, 0, Math.min(buffer.length, MAX_RESPONSE_BYTES - out.size()))) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private BatchSummary parse(byte[] body) throws IOException {
+        try {
+            JsonObject json = gson.fromJson(new String(body, "UTF-8"), JsonObject.class);
+            if (json == null || !json.has("id") || !json.has("isCompleted")) {
+                throw new IOException("Unexpected batch status response: " + json);
+            }
+            return gson.fromJson(json, BatchSummary.class);
+        } catch (JsonParseException e) {
+            throw new IOException("Invalid batch status response: " + e.getMessage());
+        }
+    }
+}
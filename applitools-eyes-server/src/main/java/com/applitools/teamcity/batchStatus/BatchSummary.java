@@ -0,0 +1,80 @@
+package com.applitools.teamcity.batchStatus;
+
+/**
+ * The batch status returned by the Eyes server for {@link com.applitools.teamcity.Constants#BATCH_STATUS_PATH}.
+ * Fields are filled by Gson from the JSON response. The response format is not confirmed by Applitools yet, see
+ * {@link BatchStatusClient}.
+ */
+public class BatchSummary {
+
+    public static final String RUNNING = "Running";
+    public static final String PASSED = "Passed";
+    public static final String FAILED = "Failed";
+    public static final String UNRESOLVED = "Unresolved";
+
+    private String id;
+    private boolean isCompleted;
+    private long startedAt;
+    private long completedAt;
+    private int runningCount;
+    private int passedCount;
+    private int failedCount;
+    private int unresolvedCount;
+    private int newCount;
+    private int stepsCount;
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean isCompleted() {
+        return isCompleted;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    public int getRunningCount() {
+        return runningCount;
+    }
+
+    public int getPassedCount() {
+        return passedCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    public int getUnresolvedCount() {
+        return unresolvedCount;
+    }
+
+    public int getNewCount() {
+        return newCount;
+    }
+
+    public int getStepsCount() {
+        return stepsCount;
+    }
+
+    public int getTestsCount() {
+        return runningCount + passedCount + failedCount + unresolvedCount + newCount;
+    }
+
+    /**
+     * @return one of {@link #RUNNING}, {@link #FAILED}, {@link #UNRESOLVED} or {@link #PASSED}, the worst state
+     * of the batch tests.
+     */
+    public String getStatus() {
+        if (!isCompleted || runningCount > 0) return RUNNING;
+        if (failedCount > 0) return FAILED;
+        if (unresolvedCount > 0) return UNRESOLVED;
+        return PASSED;
+    }
+}
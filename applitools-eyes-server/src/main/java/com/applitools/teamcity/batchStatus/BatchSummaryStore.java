@@ -0,0 +1,243 @@
+package com.applitools.teamcity.batchStatus;
+
+import com.applitools.teamcity.Constants;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import jetbrains.buildServer.ArtifactsConstants;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the final batch status of finished builds with the build, as a hidden artifact, so the results of
+ * historical builds are shown without calling the Applitools server.
+ * <p>
+ * TeamCity offers custom data storage per build configuration only, hidden artifacts are its per build storage.
+ * <p>
+ * Right after a batch is closed its status is prefetched into the {@link BatchStatusCache} and stored, so the first
+ * view of the build does not wait for the Applitools server. Prefetches run one at a time on a low priority thread,
+ * at most one every {@code teamcity.applitools.batchSummary.prefetchIntervalMs}, so they never compete with batch
+ * closes for connections. When too many are waiting, new ones are dropped; the status is then stored on the first
+ * view of the build.
+ */
+public class BatchSummaryStore {
+
+    static final String SUMMARY_PATH = ArtifactsConstants.TEAMCITY_ARTIFACTS_DIR + "/" + Constants.PLUGIN_ID + "/batch-summary.json";
+    static final String PREFETCH_INTERVAL_PROPERTY = "teamcity.applitools.batchSummary.prefetchIntervalMs";
+    static final String PREFETCH_QUEUE_CAPACITY_PROPERTY = "teamcity.applitools.batchSummary.prefetchQueueCapacity";
+
+    private final SBuildServer sBuildServer;
+    private final BatchStatusCache batchStatusCache;
+    private final Gson gson = new Gson();
+    private final BlockingQueue<Prefetch> prefetchQueue;
+    private final ScheduledExecutorService prefetchExecutor;
+    private final long prefetchIntervalMs;
+    private final AtomicBoolean prefetchStarted = new AtomicBoolean();
+
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong prefetchesDropped = new AtomicLong();
+
+    public BatchSummaryStore(@NotNull SBuildServer sBuildServer, @NotNull BatchStatusCache batchStatusCache) {
+        this(sBuildServer, batchStatusCache,
+                TeamCityProperties.getLong(PREFETCH_INTERVAL_PROPERTY, 200),
+                TeamCityProperties.getInteger(PREFETCH_QUEUE_CAPACITY_PROPERTY, 1000));
+    }
+
+    BatchSummaryStore(@NotNull SBuildServer sBuildServer, @NotNull BatchStatusCache batchStatusCache,
+                      long prefetchIntervalMs, int prefetchQueueCapacity) {
+        this.sBuildServer = sBuildServer;
+        this.batchStatusCache = batchStatusCache;
+        this.prefetchQueue = new ArrayBlockingQueue<Prefetch>(prefetchQueueCapacity);
+        this.prefetchExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Applitools batch summary prefetch");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        this.prefetchIntervalMs = prefetchIntervalMs;
+    }
+
+    /**
+     * @return the stored status of a finished build, or the cached status from the Applitools server, which is stored
+     * when it is final. Null if the server does not know the batch yet.
+     */
+    @Nullable
+    public BatchSummary getSummary(@NotNull SBuild build, @NotNull String serverUrl, @NotNull String apiKey,
+                                   @NotNull String batchId) throws IOException {
+        boolean finished = build.isFinished();
+        if (finished) {
+            BatchSummary stored = load(build);
+            if (stored != null) return stored;
+        }
+        BatchSummary summary = batchStatusCache.getSummary(serverUrl, apiKey, batchId);
+        if (finished && isFinal(summary)) {
+            save(build, summary);
+        }
+        return summary;
+    }
+
+    /**
+     * @return true if {@link #getSummary} would answer for the build without calling the Applitools server.
+     */
+    public boolean isAvailableLocally(@NotNull SBuild build, @NotNull String batchId) {
+        return (build.isFinished() && getFile(build).isFile()) || batchStatusCache.isCached(batchId);
+    }
+
+    /**
+     * Queues a prefetch of the status of a batch that was just closed at the end of the build, without blocking.
+     */
+    public void recordClosedBatch(long buildId, @NotNull String serverUrl, @NotNull String apiKey, @NotNull String batchId) {
+        if (buildId <= 0 || !BatchStatusClient.isEnabled()) return;
+        ensurePrefetchStarted();
+        if (!prefetchQueue.offer(new Prefetch(buildId, serverUrl, apiKey, batchId))) {
+            prefetchesDropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Schedules the prefetches on first use, so the prefetch thread is not started while batch statuses are off.
+     */
+    private void ensurePrefetchStarted() {
+        if (!prefetchStarted.compareAndSet(false, true)) return;
+        // with a fixed delay between the end of a prefetch and the start of the next one, at most one is in flight
+        prefetchExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                prefetchNext();
+            }
+        }, prefetchIntervalMs, prefetchIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void prefetchNext() {
+        Prefetch prefetch = prefetchQueue.poll();
+        if (prefetch == null) return;
+        try {
+            SBuild build = sBuildServer.findBuildInstanceById(prefetch.buildId);
+            if (build == null) return;
+            // the cached status was read while the batch was still open
+            batchStatusCache.invalidate(prefetch.batchId);
+            BatchSummary summary = batchStatusCache.getSummary(prefetch.serverUrl, prefetch.apiKey, prefetch.batchId);
+            prefetched.incrementAndGet();
+            if (isFinal(summary)) {
+                save(build, summary);
+            }
+        } catch (IOException e) {
+            Loggers.SERVER.info("[Applitools] Failed to prefetch the final status of batch " + prefetch.batchId + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            // an exception would cancel the periodic task
+            Loggers.SERVER.warn("[Applitools] Unexpected error while prefetching the status of batch " + prefetch.batchId, e);
+        }
+    }
+
+    public int getPrefetchQueueDepth() {
+        return prefetchQueue.size();
+    }
+
+    public long getPrefetchedCount() {
+        return prefetched.get();
+    }
+
+    public long getPrefetchDroppedCount() {
+        return prefetchesDropped.get();
+    }
+
+    public String describe() {
+        return "prefetchQueued=" + getPrefetchQueueDepth() +
+                ", prefetched=" + getPrefetchedCount() +
+                ", prefetchDropped=" + getPrefetchDroppedCount();
+    }
+
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+        Loggers.SERVER.info("[Applitools] Batch summary store stopped: " + describe());
+    }
+
+    private static boolean isFinal(BatchSummary summary) {
+        return summary != null && !BatchSummary.RUNNING.equals(summary.getStatus());
+    }
+
+    @Nullable
+    BatchSummary load(@NotNull SBuild build) {
+        File file = getFile(build);
+        if (!file.isFile()) return null;
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            try {
+                return gson.fromJson(reader, BatchSummary.class);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Loggers.SERVER.warn("[Applitools] Failed to read " + file + ": " + e.getMessage());
+        } catch (JsonParseException e) {
+            Loggers.SERVER.warn("[Applitools] Failed to parse " + file + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Writes the summary to a temporary file of its own and moves it in place, so a prefetch and a first view saving
+     * the same build at once never see or move each other's half written file.
+     */
+    void save(@NotNull SBuild build, @NotNull BatchSummary summary) {
+        File file = getFile(build);
+        File temp = null;
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                gson.toJson(summary, writer);
+            } finally {
+                writer.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Loggers.SERVER.warn("[Applitools] Failed to store the batch status of build " + build.getBuildId() + ": " + e.getMessage());
+            if (temp != null) temp.delete();
+        }
+    }
+
+    private static File getFile(SBuild build) {
+        return new File(build.getArtifactsDirectory(), SUMMARY_PATH);
+    }
+
+    private static class Prefetch {
+        private final long buildId;
+        private final String serverUrl;
+        private final String apiKey;
+        private final String batchId;
+
+        private Prefetch(long buildId, String serverUrl, String apiKey, String batchId) {
+            this.buildId = buildId;
+            this.serverUrl = serverUrl;
+            this.apiKey = apiKey;
+            this.batchId = batchId;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.applitools.teamcity.batchStatus;
+
+import jetbrains.buildServer.serverSide.SBuild;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The Applitools batch of a build, with the settings of the build feature needed to read its status.
+ */
+public class BuildBatch {
+
+    private final SBuild build;
+    private final String serverUrl;
+    private final String apiKey;
+    private final String batchId;
+
+    public BuildBatch(@NotNull SBuild build, @NotNull String serverUrl, @Nullable String apiKey, @NotNull String batchId) {
+        this.build = build;
+        this.serverUrl = serverUrl;
+        this.apiKey = apiKey;
+        this.batchId = batchId;
+    }
+
+    @NotNull
+    public SBuild getBuild() {
+        return build;
+    }
+
+    @NotNull
+    public String getServerUrl() {
+        return serverUrl;
+    }
+
+    /**
+     * @return the API key, or null when the feature has none and the batch status cannot be read.
+     */
+    @Nullable
+    public String getApiKey() {
+        return apiKey != null && !apiKey.isEmpty() ? apiKey : null;
+    }
+
+    @NotNull
+    public String getBatchId() {
+        return batchId;
+    }
+}
@@ -0,0 +1,55 @@
+package com.applitools.teamcity.batchStatus;
+
+import com.applitools.teamcity.Common;
+import com.applitools.teamcity.Constants;
+import com.applitools.teamcity.buildFeature.ApplitoolsFeatureIndex;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Finds the Applitools batch of a build on behalf of a user.
+ */
+public class BuildBatchResolver {
+
+    private final SBuildServer sBuildServer;
+    private final ApplitoolsFeatureIndex featureIndex;
+
+    public BuildBatchResolver(@NotNull SBuildServer sBuildServer, @NotNull ApplitoolsFeatureIndex featureIndex) {
+        this.sBuildServer = sBuildServer;
+        this.featureIndex = featureIndex;
+    }
+
+    /**
+     * @return the batch of the build, or null if there is no such build, the user may not view it, or the build
+     * configuration has no enabled Applitools feature.
+     */
+    @Nullable
+    public BuildBatch resolve(@Nullable SUser user, long buildId) {
+        if (user == null) return null;
+        SBuild build = sBuildServer.findBuildInstanceById(buildId);
+        if (build == null || !user.isPermissionGrantedForProject(build.getProjectId(), Permission.VIEW_PROJECT)) {
+            return null;
+        }
+        return resolve(build);
+    }
+
+    /**
+     * @return the batch of the build, or null if the build configuration has no enabled Applitools feature.
+     */
+    @Nullable
+    public BuildBatch resolve(@NotNull SBuild build) {
+        SBuildType buildType = build.getBuildType();
+        SBuildFeatureDescriptor feature = featureIndex.getApplitoolsBuildFeature(buildType);
+        if (feature == null || !buildType.isEnabled(feature.getId())) return null;
+        return new BuildBatch(build,
+                Common.getServerUrl(feature.getParameters().get(Constants.APPLITOOLS_SERVER_URL_FIELD)),
+                feature.getParameters().get(Constants.APPLITOOLS_API_KEY_FIELD),
+                Common.generateBatchId(build.getBuildTypeId(), build.getBuildNumber(), build.getBuildId()));
+    }
+}
@@ -0,0 +1,80 @@
+package com.applitools.teamcity.buildFeature;
+
+import com.applitools.teamcity.Constants;
+import com.applitools.teamcity.ExpiringLruCache;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.BuildTypeTemplate;
+import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Remembers the Applitools build feature of each build configuration, so it is not looked up in the feature list
+ * on every page view.
+ * <p>
+ * An entry is dropped when its build configuration is persisted or removed, and all entries are dropped when a
+ * template or a project is persisted. Entries also expire, in case settings change without these events.
+ */
+public class ApplitoolsFeatureIndex extends BuildServerAdapter {
+
+    static final String SIZE_PROPERTY = "teamcity.applitools.featureIndex.size";
+    static final String TTL_PROPERTY = "teamcity.applitools.featureIndex.ttlMs";
+
+    private static final Object NO_FEATURE = new Object();
+
+    private final ExpiringLruCache<String, Object> features =
+            new ExpiringLruCache<String, Object>(TeamCityProperties.getInteger(SIZE_PROPERTY, 10000));
+    private final long ttlMs = TeamCityProperties.getLong(TTL_PROPERTY, 600000);
+
+    public ApplitoolsFeatureIndex(@NotNull EventDispatcher<BuildServerListener> dispatcher) {
+        dispatcher.addListener(this);
+    }
+
+    /**
+     * @return the Applitools build feature of the build configuration, or null if it has none.
+     */
+    @Nullable
+    public SBuildFeatureDescriptor getApplitoolsBuildFeature(@Nullable SBuildType buildType) {
+        if (buildType == null) return null;
+        Object feature = features.get(buildType.getBuildTypeId());
+        if (feature == null) {
+            SBuildFeatureDescriptor found = findApplitoolsBuildFeature(buildType);
+            feature = found != null ? found : NO_FEATURE;
+            features.put(buildType.getBuildTypeId(), feature, ttlMs);
+        }
+        return feature == NO_FEATURE ? null : (SBuildFeatureDescriptor) feature;
+    }
+
+    @Override
+    public void buildTypePersisted(@NotNull SBuildType buildType) {
+        features.remove(buildType.getBuildTypeId());
+    }
+
+    @Override
+    public void buildTypeUnregistered(@NotNull SBuildType buildType) {
+        features.remove(buildType.getBuildTypeId());
+    }
+
+    @Override
+    public void buildTypeTemplatePersisted(@NotNull BuildTypeTemplate buildTemplate) {
+        features.clear();
+    }
+
+    @Override
+    public void projectPersisted(@NotNull String projectId) {
+        features.clear();
+    }
+
+    private static SBuildFeatureDescriptor findApplitoolsBuildFeature(SBuildType buildType) {
+        for (SBuildFeatureDescriptor feature : buildType.getBuildFeatures()) {
+            if (feature.getType().equals(Constants.APPLITOOLS_BUILD_FEATURE_TYPE)) {
+                return feature;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,79 @@
+package com.applitools.teamcity.concurrency;
+
+import com.applitools.teamcity.buildFeature.ApplitoolsFeatureIndex;
+import jetbrains.buildServer.BuildAgent;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildPromotionManager;
+import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.buildDistribution.BuildDistributorInput;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.serverSide.buildDistribution.SimpleWaitReason;
+import jetbrains.buildServer.serverSide.buildDistribution.StartBuildPrecondition;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+
+/**
+ * Keeps queued Applitools builds in the queue while the running builds of their account use all its test concurrency.
+ * <p>
+ * The account is full when the {@link ConcurrencyAllocator} would grant the build no share of its
+ * {@code applitoolsPlugin.concurrencyLimit}, counting the shares of the running builds and of the builds the queue is
+ * about to start in the same round. The check uses the allocator accounting only and never calls the Applitools
+ * server. It can be turned off with {@code teamcity.applitools.capacityPrecondition.enabled=false}.
+ */
+public class ApplitoolsCapacityPrecondition implements StartBuildPrecondition {
+
+    static final String ENABLED_PROPERTY = "teamcity.applitools.capacityPrecondition.enabled";
+
+    private final ConcurrencyAllocator concurrencyAllocator;
+    private final BuildPromotionManager buildPromotionManager;
+    private final ApplitoolsFeatureIndex featureIndex;
+
+    public ApplitoolsCapacityPrecondition(@NotNull ConcurrencyAllocator concurrencyAllocator,
+                                          @NotNull BuildPromotionManager buildPromotionManager,
+                                          @NotNull ApplitoolsFeatureIndex featureIndex) {
+        this.concurrencyAllocator = concurrencyAllocator;
+        this.buildPromotionManager = buildPromotionManager;
+        this.featureIndex = featureIndex;
+    }
+
+    @Nullable
+    @Override
+    public WaitReason canStart(@NotNull QueuedBuildInfo queuedBuild, @NotNull Map<QueuedBuildInfo, BuildAgent> canBeStarted,
+                               @NotNull BuildDistributorInput buildDistributorInput, boolean emulationMode) {
+        if (!TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY)) return null;
+        SBuildFeatureDescriptor feature = getApplitoolsBuildFeature(queuedBuild);
+        if (feature == null) return null;
+        String account = ConcurrencyAllocator.getAccount(feature);
+        int limit = ConcurrencyAllocator.getLimit(feature);
+        if (account == null || limit <= 0) return null;
+
+        // builds already chosen to start in this distribution round do not hold concurrency yet
+        int starting = 0;
+        for (QueuedBuildInfo startingBuild : canBeStarted.keySet()) {
+            SBuildFeatureDescriptor startingFeature = getApplitoolsBuildFeature(startingBuild);
+            if (startingFeature != null && ConcurrencyAllocator.getLimit(startingFeature) > 0 &&
+                    account.equals(ConcurrencyAllocator.getAccount(startingFeature))) {
+                starting++;
+            }
+        }
+        if (concurrencyAllocator.peekShare(account, limit, starting) > 0) return null;
+        return new SimpleWaitReason("Waiting for Applitools visual test capacity: running builds use " +
+                concurrencyAllocator.getGranted(account) + " of " + limit + " concurrent tests of the account" +
+                (starting > 0 ? ", " + starting + " more are starting" : ""));
+    }
+
+    @Nullable
+    private SBuildFeatureDescriptor getApplitoolsBuildFeature(QueuedBuildInfo queuedBuild) {
+        BuildPromotion promotion = buildPromotionManager.findPromotionById(queuedBuild.getBuildPromotionInfo().getId());
+        if (promotion == null) return null;
+        SBuildType buildType = promotion.getBuildType();
+        SBuildFeatureDescriptor feature = featureIndex.getApplitoolsBuildFeature(buildType);
+        if (feature == null || !buildType.isEnabled(feature.getId())) return null;
+        return feature;
+    }
+}
@@ -0,0 +1,256 @@
+package com.applitools.teamcity.concurrency;
+
+import com.applitools.teamcity.Common;
+import com.applitools.teamcity.Constants;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.BuildStartContext;
+import jetbrains.buildServer.serverSide.BuildStartContextProcessor;
+import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Divides the test concurrency of each Applitools account among its running builds.
+ * <p>
+ * The account limit is the {@code applitoolsPlugin.concurrencyLimit} setting of the build feature; builds without it
+ * are not accounted for. When a build starts, it gets an equal share of the limit for the builds expected to run at
+ * once, {@code limit / max(expectedBuilds, running builds)}, so the first build does not take the whole account.
+ * The share is at least 1, but never more than what the other running builds left, so the shares of an account never
+ * add up to more than its limit. {@code expectedBuilds} is set with
+ * {@code teamcity.applitools.concurrency.expectedBuilds}, 4 by default.
+ * <p>
+ * The share is passed to the agent as the {@code applitools.concurrency} parameter, exported as
+ * {@code APPLITOOLS_CONCURRENCY}. A build that starts when nothing is left, which the
+ * {@link ApplitoolsCapacityPrecondition} normally prevents, gets no share. Finished builds give their share back for
+ * the builds that start next.
+ * <p>
+ * A share is fixed when the build starts and kept until it finishes; running builds are not rebalanced. The agent
+ * receives build parameters only at build start, and an Eyes runner reads its concurrency once when it starts.
+ * <p>
+ * Shares are held in memory. Builds keep running on their agents while the server restarts, so at server startup the
+ * shares of the running builds are restored from their {@code applitools.concurrency} parameter.
+ */
+public class ConcurrencyAllocator extends BuildServerAdapter implements BuildStartContextProcessor {
+
+    static final String EXPECTED_BUILDS_PROPERTY = "teamcity.applitools.concurrency.expectedBuilds";
+
+    private final Map<String, Account> accounts = new HashMap<String, Account>();
+    private final int expectedBuilds;
+    @Nullable
+    private final SBuildServer sBuildServer;
+
+    public ConcurrencyAllocator(@NotNull EventDispatcher<BuildServerListener> dispatcher, @NotNull SBuildServer sBuildServer) {
+        this(sBuildServer, TeamCityProperties.getInteger(EXPECTED_BUILDS_PROPERTY, 4));
+        dispatcher.addListener(this);
+    }
+
+    ConcurrencyAllocator(int expectedBuilds) {
+        this(null, expectedBuilds);
+    }
+
+    private ConcurrencyAllocator(@Nullable SBuildServer sBuildServer, int expectedBuilds) {
+        this.sBuildServer = sBuildServer;
+        this.expectedBuilds = Math.max(1, expectedBuilds);
+    }
+
+    @Override
+    public void serverStartup() {
+        if (sBuildServer != null) {
+            restore(sBuildServer.getRunningBuilds());
+        }
+    }
+
+    /**
+     * Gives the running builds back the shares they were granted before the server restarted.
+     */
+    void restore(@NotNull Collection<SRunningBuild> builds) {
+        for (SRunningBuild build : builds) {
+            int share = parseCount(build.getParametersProvider().get(Constants.APPLITOOLS_CONCURRENCY_PARAMETER));
+            if (share <= 0) continue;
+            for (SBuildFeatureDescriptor feature : build.getBuildFeaturesOfType(Constants.APPLITOOLS_BUILD_FEATURE_TYPE)) {
+                String account = getAccount(feature);
+                int limit = getLimit(feature);
+                if (account == null || limit <= 0) continue;
+                restore(account, limit, build.getBuildId(), share);
+            }
+        }
+        Loggers.SERVER.info("[Applitools] Restored the concurrency of running builds: " + describe());
+    }
+
+    /**
+     * Records the share a running build was granted, unless it already has one.
+     */
+    synchronized void restore(@NotNull String account, int limit, long buildId, int share) {
+        Account state = accounts.get(account);
+        if (state == null) {
+            state = new Account();
+            accounts.put(account, state);
+        }
+        state.limit = limit;
+        if (!state.grants.containsKey(buildId)) {
+            state.grants.put(buildId, share);
+        }
+    }
+
+    @Override
+    public void updateParameters(@NotNull BuildStartContext context) {
+        SRunningBuild build = context.getBuild();
+        for (SBuildFeatureDescriptor feature : build.getBuildFeaturesOfType(Constants.APPLITOOLS_BUILD_FEATURE_TYPE)) {
+            String account = getAccount(feature);
+            int limit = getLimit(feature);
+            if (account == null || limit <= 0) continue;
+            int share = allocate(account, limit, build.getBuildId());
+            if (share == 0) {
+                Loggers.SERVER.warn("[Applitools] Build " + build.getBuildId() + " started while its account uses all " +
+                        limit + " concurrent visual tests, it gets no share of them");
+                continue;
+            }
+            context.addSharedParameter(Constants.APPLITOOLS_CONCURRENCY_PARAMETER, Integer.toString(share));
+            Loggers.SERVER.info("[Applitools] Build " + build.getBuildId() + " may run " + share + " of " + limit +
+                    " concurrent visual tests");
+        }
+    }
+
+    /**
+     * @return the concurrency granted to the build, the one granted earlier if the build already has one, or 0 if the
+     * running builds of the account already use all of it.
+     */
+    synchronized int allocate(@NotNull String account, int limit, long buildId) {
+        Account state = accounts.get(account);
+        if (state == null) {
+            state = new Account();
+            accounts.put(account, state);
+        }
+        state.limit = limit;
+        Integer granted = state.grants.get(buildId);
+        if (granted != null) return granted;
+        int share = getShare(limit, state.getGranted(), state.grants.size());
+        if (share > 0) {
+            state.grants.put(buildId, share);
+        }
+        return share;
+    }
+
+    /**
+     * Tells the share a build would get if it started after {@code alreadyStarting} other builds of the account,
+     * each getting its own share first. Nothing is granted.
+     *
+     * @return the concurrency the build would be granted, or 0 if nothing would be left for it.
+     */
+    public synchronized int peekShare(@NotNull String account, int limit, int alreadyStarting) {
+        Account state = accounts.get(account);
+        int granted = state == null ? 0 : state.getGranted();
+        int builds = state == null ? 0 : state.grants.size();
+        for (int i = 0; i < alreadyStarting; i++) {
+            int share = getShare(limit, granted, builds);
+            if (share == 0) return 0;
+            granted += share;
+            builds++;
+        }
+        return getShare(limit, granted, builds);
+    }
+
+    private int getShare(int limit, int granted, int builds) {
+        int left = limit - granted;
+        if (left <= 0) return 0;
+        int fairShare = limit / Math.max(expectedBuilds, builds + 1);
+        return Math.min(Math.max(1, fairShare), left);
+    }
+
+    /**
+     * Gives back the concurrency of a build that finished.
+     */
+    public synchronized void release(long buildId) {
+        Iterator<Account> iterator = accounts.values().iterator();
+        while (iterator.hasNext()) {
+            Account state = iterator.next();
+            state.grants.remove(buildId);
+            if (state.grants.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the concurrency granted to the running builds of the account.
+     */
+    public synchronized int getGranted(@NotNull String account) {
+        Account state = accounts.get(account);
+        return state == null ? 0 : state.getGranted();
+    }
+
+    /**
+     * @return the number of running builds of the account that were granted concurrency.
+     */
+    public synchronized int getBuildCount(@NotNull String account) {
+        Account state = accounts.get(account);
+        return state == null ? 0 : state.grants.size();
+    }
+
+    public synchronized int getBuildCount() {
+        int count = 0;
+        for (Account state : accounts.values()) {
+            count += state.grants.size();
+        }
+        return count;
+    }
+
+    public synchronized String describe() {
+        StringBuilder description = new StringBuilder("accounts=" + accounts.size() + ", builds=" + getBuildCount());
+        for (Account state : accounts.values()) {
+            description.append(", ").append(state.getGranted()).append('/').append(state.limit);
+        }
+        return description.toString();
+    }
+
+    /**
+     * @return the key of the Applitools account of the feature, or null if the feature has no API key.
+     */
+    @Nullable
+    static String getAccount(@NotNull SBuildFeatureDescriptor feature) {
+        String apiKey = feature.getParameters().get(Constants.APPLITOOLS_API_KEY_FIELD);
+        if (apiKey == null || apiKey.isEmpty()) return null;
+        return Common.getServerUrl(feature.getParameters().get(Constants.APPLITOOLS_SERVER_URL_FIELD)) + "#" + apiKey;
+    }
+
+    /**
+     * @return the account concurrency limit set in the feature, or 0 when it is not set.
+     */
+    static int getLimit(@NotNull SBuildFeatureDescriptor feature) {
+        return parseCount(feature.getParameters().get(Constants.APPLITOOLS_CONCURRENCY_LIMIT_FIELD));
+    }
+
+    private static int parseCount(@Nullable String value) {
+        if (value == null || value.trim().isEmpty()) return 0;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static class Account {
+        private final Map<Long, Integer> grants = new LinkedHashMap<Long, Integer>();
+        private int limit;
+
+        private int getGranted() {
+            int granted = 0;
+            for (int share : grants.values()) {
+                granted += share;
+            }
+            return granted;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.applitools.teamcity.http;
+
+import com.applitools.teamcity.PooledHttpClient;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+/**
+ * The plugin-wide HTTP client used by all server side calls to the Applitools server.
+ * <p>
+ * Pool limits and timeouts can be changed with the {@code teamcity.applitools.http.*} internal properties.
+ */
+public class ApplitoolsHttpClient extends PooledHttpClient {
+
+    static final String MAX_CONNECTIONS_PER_HOST_PROPERTY = "teamcity.applitools.http.maxConnectionsPerHost";
+    static final String MAX_TOTAL_CONNECTIONS_PROPERTY = "teamcity.applitools.http.maxTotalConnections";
+    static final String CONNECT_TIMEOUT_PROPERTY = "teamcity.applitools.http.connectTimeoutMs";
+    static final String SOCKET_TIMEOUT_PROPERTY = "teamcity.applitools.http.socketTimeoutMs";
+
+    public ApplitoolsHttpClient() {
+        super(TeamCityProperties.getInteger(MAX_CONNECTIONS_PER_HOST_PROPERTY, 8),
+                TeamCityProperties.getInteger(MAX_TOTAL_CONNECTIONS_PROPERTY, 32),
+                TeamCityProperties.getInteger(CONNECT_TIMEOUT_PROPERTY, 10000),
+                TeamCityProperties.getInteger(SOCKET_TIMEOUT_PROPERTY, 30000));
+    }
+
+    @Override
+    public void shutdown() {
+        Loggers.SERVER.info("[Applitools] Shutting down HTTP client: " + describe());
+        super.shutdown();
+    }
+}
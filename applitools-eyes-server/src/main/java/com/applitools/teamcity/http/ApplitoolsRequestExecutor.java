@@ -0,0 +1,25 @@
+package com.applitools.teamcity.http;
+
+import com.applitools.teamcity.CircuitBreaker;
+import com.applitools.teamcity.EyesRequestExecutor;
+import jetbrains.buildServer.log.Loggers;
+
+/**
+ * The plugin-wide retry and circuit breaker policy for server side calls to the Applitools server.
+ */
+public class ApplitoolsRequestExecutor extends EyesRequestExecutor {
+
+    public ApplitoolsRequestExecutor() {
+        super(new CircuitBreaker.Listener() {
+            @Override
+            public void stateChanged(String endpoint, CircuitBreaker.State from, CircuitBreaker.State to) {
+                String message = "[Applitools] Circuit of " + endpoint + " changed from " + from + " to " + to;
+                if (to == CircuitBreaker.State.OPEN) {
+                    Loggers.SERVER.warn(message);
+                } else {
+                    Loggers.SERVER.info(message);
+                }
+            }
+        });
+    }
+}
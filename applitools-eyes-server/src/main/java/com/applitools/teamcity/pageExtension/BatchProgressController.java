@@ -0,0 +1,217 @@
+package com.applitools.teamcity.pageExtension;
+
+import com.applitools.teamcity.batchStatus.BatchPoller;
+import com.applitools.teamcity.batchStatus.BatchStatusClient;
+import com.applitools.teamcity.batchStatus.BatchSummary;
+import com.applitools.teamcity.batchStatus.BatchSummaryStore;
+import com.applitools.teamcity.batchStatus.BuildBatch;
+import com.applitools.teamcity.batchStatus.BuildBatchResolver;
+import com.google.gson.stream.JsonWriter;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Streams the progress of the Applitools batch of a running build to the build results page as server-sent events.
+ * <p>
+ * Every change of the batch is sent as a {@code progress} event:
+ * <pre>
+ * event: progress
+ * data: {"status":"Running","tests":12,"completed":9,"diffs":1,"passed":8,...}
+ * </pre>
+ * Progress is read by the {@link BatchPoller}, once per batch whatever the number of viewers. The stream ends
+ * with an {@code end} event when the batch is completed, and is closed after
+ * {@code teamcity.applitools.batchProgress.streamTimeoutMs}, the browser then reconnects. For finished builds the
+ * stored status is sent right away.
+ */
+public class BatchProgressController extends BaseController {
+
+    static final String PATH = "/applitools/batchProgress.html";
+    static final String STREAM_TIMEOUT_PROPERTY = "teamcity.applitools.batchProgress.streamTimeoutMs";
+
+    private static final String NOT_STARTED = "NotStarted";
+
+    private final BuildBatchResolver buildBatchResolver;
+    private final BatchSummaryStore batchSummaryStore;
+    private final BatchPoller batchPoller;
+
+    public BatchProgressController(@NotNull SBuildServer sBuildServer,
+                                   @NotNull WebControllerManager webControllerManager,
+                                   @NotNull BuildBatchResolver buildBatchResolver,
+                                   @NotNull BatchSummaryStore batchSummaryStore,
+                                   @NotNull BatchPoller batchPoller) {
+        super(sBuildServer);
+        this.buildBatchResolver = buildBatchResolver;
+        this.batchSummaryStore = batchSummaryStore;
+        this.batchPoller = batchPoller;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        if (!BatchStatusClient.isEnabled()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+        final long buildId;
+        try {
+            buildId = Long.parseLong(request.getParameter("buildId"));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        final BuildBatch batch = buildBatchResolver.resolve(SessionUser.getUser(request), buildId);
+        if (batch == null || batch.getApiKey() == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        // do not let proxies buffer the stream
+        response.setHeader("X-Accel-Buffering", "no");
+        final PrintWriter writer = response.getWriter();
+
+        if (batch.getBuild().isFinished() || !request.isAsyncSupported()) {
+            try {
+                BatchSummary summary = batchSummaryStore.getSummary(batch.getBuild(), batch.getServerUrl(), batch.getApiKey(), batch.getBatchId());
+                send(writer, "progress", toJson(summary));
+            } catch (IOException e) {
+                send(writer, "failure", toErrorJson(e.getMessage()));
+            }
+            send(writer, "end", "{}");
+            return null;
+        }
+
+        final AsyncContext async = request.startAsync();
+        async.setTimeout(TeamCityProperties.getLong(STREAM_TIMEOUT_PROPERTY, 10 * 60 * 1000));
+        final BatchPoller.Listener listener = new BatchPoller.Listener() {
+            @Override
+            public void onProgress(@Nullable BatchSummary summary) {
+                boolean completed = summary != null && summary.isCompleted();
+                if (!send(writer, "progress", toJson(summary)) || (completed && !send(writer, "end", "{}"))) {
+                    // the browser went away
+                    batchPoller.unsubscribe(batch.getBatchId(), this);
+                    complete(async);
+                } else if (completed) {
+                    complete(async);
+                }
+            }
+
+            @Override
+            public void onError(@NotNull String message) {
+                if (!send(writer, "failure", toErrorJson(message))) {
+                    batchPoller.unsubscribe(batch.getBatchId(), this);
+                    complete(async);
+                }
+            }
+        };
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                batchPoller.unsubscribe(batch.getBatchId(), listener);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                batchPoller.unsubscribe(batch.getBatchId(), listener);
+                complete(async);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                batchPoller.unsubscribe(batch.getBatchId(), listener);
+                complete(async);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        // tell the browser the stream is open, then follow the batch
+        send(writer, null, null);
+        batchPoller.subscribe(batch.getServerUrl(), batch.getApiKey(), batch.getBatchId(), listener);
+        return null;
+    }
+
+    /**
+     * Writes an event, or a comment when the event is null.
+     *
+     * @return false if the browser is gone.
+     */
+    private static boolean send(PrintWriter writer, @Nullable String event, @Nullable String data) {
+        synchronized (writer) {
+            if (event == null) {
+                writer.write(": applitools\n\n");
+            } else {
+                writer.write("event: " + event + "\ndata: " + data + "\n\n");
+            }
+            writer.flush();
+            return !writer.checkError();
+        }
+    }
+
+    private static void complete(AsyncContext async) {
+        try {
+            async.complete();
+        } catch (IllegalStateException e) {
+            // already completed
+        }
+    }
+
+    private static String toJson(@Nullable BatchSummary summary) {
+        StringWriter out = new StringWriter();
+        try {
+            JsonWriter json = new JsonWriter(out);
+            json.beginObject();
+            if (summary == null) {
+                json.name("status").value(NOT_STARTED);
+            } else {
+                json.name("status").value(summary.getStatus());
+                json.name("tests").value(summary.getTestsCount());
+                json.name("completed").value(summary.getTestsCount() - summary.getRunningCount());
+                json.name("diffs").value(summary.getFailedCount() + summary.getUnresolvedCount());
+                json.name("steps").value(summary.getStepsCount());
+                json.name("passed").value(summary.getPassedCount());
+                json.name("failed").value(summary.getFailedCount());
+                json.name("unresolved").value(summary.getUnresolvedCount());
+                json.name("new").value(summary.getNewCount());
+                json.name("running").value(summary.getRunningCount());
+            }
+            json.endObject();
+            json.close();
+        } catch (IOException e) {
+            Loggers.SERVER.warn("[Applitools] Failed to write the batch progress", e);
+        }
+        return out.toString();
+    }
+
+    private static String toErrorJson(@Nullable String message) {
+        StringWriter out = new StringWriter();
+        try {
+            JsonWriter json = new JsonWriter(out);
+            json.beginObject().name("message").value(message).endObject();
+            json.close();
+        } catch (IOException e) {
+            Loggers.SERVER.warn("[Applitools] Failed to write the batch progress", e);
+        }
+        return out.toString();
+    }
+}
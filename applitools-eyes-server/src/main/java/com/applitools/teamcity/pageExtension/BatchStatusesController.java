@@ -0,0 +1,241 @@
+package com.applitools.teamcity.pageExtension;
+
+import com.applitools.teamcity.batchStatus.BatchStatusClient;
+import com.applitools.teamcity.batchStatus.BatchSummary;
+import com.applitools.teamcity.batchStatus.BatchSummaryStore;
+import com.applitools.teamcity.batchStatus.BuildBatch;
+import com.applitools.teamcity.batchStatus.BuildBatchResolver;
+import com.google.gson.stream.JsonWriter;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Returns the Applitools batch status of many builds in one streamed JSON response, for dashboards and build lists.
+ * <p>
+ * Build ids are passed as repeated {@code buildId} parameters or as a comma separated {@code buildIds} parameter.
+ * Statuses available without calling the Applitools server are written first, the others are read in parallel on
+ * a pool shared by all requests and written as they arrive:
+ * <pre>
+ * {"builds":[{"buildId":12,"batchId":"teamcity-...","status":"Passed","passed":10,...},
+ *            {"buildId":13,"status":"NotFound"}]}
+ * </pre>
+ * Status is one of the {@link BatchSummary} states, {@code NotStarted} when the server does not know the batch,
+ * {@code NotFound} when the build has no Applitools batch or is not visible to the user, or {@code Error}.
+ */
+public class BatchStatusesController extends BaseController {
+
+    static final String PATH = "/applitools/batchStatuses.html";
+    static final String MAX_BUILDS_PROPERTY = "teamcity.applitools.batchStatuses.maxBuilds";
+    static final String FETCH_THREADS_PROPERTY = "teamcity.applitools.batchStatuses.fetchThreads";
+
+    static final String NOT_STARTED = "NotStarted";
+    static final String NOT_FOUND = "NotFound";
+    static final String ERROR = "Error";
+
+    private final BuildBatchResolver buildBatchResolver;
+    private final BatchSummaryStore batchSummaryStore;
+    private final ThreadPoolExecutor fetchExecutor;
+    private final int maxBuilds;
+
+    public BatchStatusesController(@NotNull SBuildServer sBuildServer,
+                                   @NotNull WebControllerManager webControllerManager,
+                                   @NotNull BuildBatchResolver buildBatchResolver,
+                                   @NotNull BatchSummaryStore batchSummaryStore) {
+        super(sBuildServer);
+        this.buildBatchResolver = buildBatchResolver;
+        this.batchSummaryStore = batchSummaryStore;
+        this.maxBuilds = TeamCityProperties.getInteger(MAX_BUILDS_PROPERTY, 500);
+        int threads = TeamCityProperties.getInteger(FETCH_THREADS_PROPERTY, 8);
+        // When all fetch threads are busy and the queue is full, the request thread reads the status itself.
+        this.fetchExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxBuilds), new ThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NotNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Applitools batch status fetch " + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.fetchExecutor.allowCoreThreadTimeOut(true);
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        if (!BatchStatusClient.isEnabled()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+        Set<Long> buildIds;
+        try {
+            buildIds = getBuildIds(request);
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid build id: " + e.getMessage());
+            return null;
+        }
+        if (buildIds.size() > maxBuilds) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "At most " + maxBuilds + " builds can be requested at once");
+            return null;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        JsonWriter json = new JsonWriter(response.getWriter());
+        json.beginObject().name("builds").beginArray();
+
+        SUser user = SessionUser.getUser(request);
+        CompletionService<Status> fetches = new ExecutorCompletionService<Status>(fetchExecutor);
+        List<Future<Status>> pending = new ArrayList<Future<Status>>();
+        Map<Long, BuildBatch> fetchedBatches = new HashMap<Long, BuildBatch>();
+        Set<Long> written = new HashSet<Long>();
+        for (long buildId : buildIds) {
+            final BuildBatch batch = buildBatchResolver.resolve(user, buildId);
+            if (batch == null || batch.getApiKey() == null) {
+                write(json, new Status(buildId, batch, null, NOT_FOUND));
+            } else if (batchSummaryStore.isAvailableLocally(batch.getBuild(), batch.getBatchId())) {
+                write(json, getStatus(batch));
+            } else {
+                fetchedBatches.put(buildId, batch);
+                pending.add(fetches.submit(new Callable<Status>() {
+                    @Override
+                    public Status call() {
+                        return getStatus(batch);
+                    }
+                }));
+            }
+        }
+        json.flush();
+
+        try {
+            for (int i = 0; i < pending.size(); i++) {
+                Future<Status> fetch = fetches.take();
+                Status status;
+                try {
+                    status = fetch.get();
+                } catch (ExecutionException e) {
+                    // read failures are handled by getStatus, anything else is reported for its build below
+                    Loggers.SERVER.warn("[Applitools] Failed to read a batch status", e.getCause());
+                    continue;
+                }
+                written.add(status.buildId);
+                write(json, status);
+                json.flush();
+            }
+        } finally {
+            // the client went away, do not read the remaining statuses for nobody
+            for (Future<Status> future : pending) {
+                future.cancel(false);
+            }
+        }
+        // every requested build gets an entry
+        for (Map.Entry<Long, BuildBatch> fetched : fetchedBatches.entrySet()) {
+            if (!written.contains(fetched.getKey())) {
+                write(json, new Status(fetched.getKey(), fetched.getValue(), null, ERROR));
+            }
+        }
+        json.endArray().endObject();
+        json.flush();
+        return null;
+    }
+
+    private Status getStatus(BuildBatch batch) {
+        long buildId = batch.getBuild().getBuildId();
+        try {
+            BatchSummary summary = batchSummaryStore.getSummary(batch.getBuild(), batch.getServerUrl(), batch.getApiKey(), batch.getBatchId());
+            return new Status(buildId, batch, summary, summary == null ? NOT_STARTED : summary.getStatus());
+        } catch (IOException e) {
+            Loggers.SERVER.info("[Applitools] Failed to get the status of batch " + batch.getBatchId() + ": " + e.getMessage());
+            return new Status(buildId, batch, null, ERROR);
+        }
+    }
+
+    private static Set<Long> getBuildIds(HttpServletRequest request) {
+        Set<Long> buildIds = new LinkedHashSet<Long>();
+        String[] values = request.getParameterValues("buildId");
+        if (values != null) {
+            for (String value : values) {
+                buildIds.add(Long.parseLong(value.trim()));
+            }
+        }
+        String list = request.getParameter("buildIds");
+        if (list != null) {
+            for (String value : list.split(",")) {
+                if (!value.trim().isEmpty()) {
+                    buildIds.add(Long.parseLong(value.trim()));
+                }
+            }
+        }
+        return buildIds;
+    }
+
+    private static void write(JsonWriter json, Status status) throws IOException {
+        json.beginObject();
+        json.name("buildId").value(status.buildId);
+        if (status.batch != null) {
+            json.name("batchId").value(status.batch.getBatchId());
+        }
+        json.name("status").value(status.status);
+        BatchSummary summary = status.summary;
+        if (summary != null) {
+            json.name("tests").value(summary.getTestsCount());
+            json.name("steps").value(summary.getStepsCount());
+            json.name("passed").value(summary.getPassedCount());
+            json.name("failed").value(summary.getFailedCount());
+            json.name("unresolved").value(summary.getUnresolvedCount());
+            json.name("new").value(summary.getNewCount());
+            json.name("running").value(summary.getRunningCount());
+        }
+        json.endObject();
+    }
+
+    public void shutdown() {
+        fetchExecutor.shutdownNow();
+    }
+
+    private static class Status {
+        private final long buildId;
+        private final BuildBatch batch;
+        private final BatchSummary summary;
+        private final String status;
+
+        private Status(long buildId, BuildBatch batch, BatchSummary summary, String status) {
+            this.buildId = buildId;
+            this.batch = batch;
+            this.summary = summary;
+            this.status = status;
+        }
+    }
+}
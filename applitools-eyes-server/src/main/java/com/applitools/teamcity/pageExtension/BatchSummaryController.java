@@ -0,0 +1,87 @@
+package com.applitools.teamcity.pageExtension;
+
+import com.applitools.teamcity.batchStatus.BatchStatusClient;
+import com.applitools.teamcity.batchStatus.BatchSummary;
+import com.applitools.teamcity.batchStatus.BatchSummaryStore;
+import com.applitools.teamcity.batchStatus.BuildBatch;
+import com.applitools.teamcity.batchStatus.BuildBatchResolver;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Renders the Applitools batch summary of a build: test counts by state, the step count and a link to the
+ * Eyes results page. The build results page loads it after the page itself, so a slow Eyes server never
+ * delays the page. Batch statuses come from the {@link BatchSummaryStore}.
+ */
+public class BatchSummaryController extends BaseController {
+
+    static final String PATH = "/applitools/batchSummary.html";
+
+    private final PluginDescriptor pluginDescriptor;
+    private final BuildBatchResolver buildBatchResolver;
+    private final IframeUrlBuilder iframeUrlBuilder;
+    private final BatchSummaryStore batchSummaryStore;
+
+    public BatchSummaryController(@NotNull SBuildServer sBuildServer,
+                                  @NotNull WebControllerManager webControllerManager,
+                                  @NotNull PluginDescriptor pluginDescriptor,
+                                  @NotNull BuildBatchResolver buildBatchResolver,
+                                  @NotNull IframeUrlBuilder iframeUrlBuilder,
+                                  @NotNull BatchSummaryStore batchSummaryStore) {
+        super(sBuildServer);
+        this.pluginDescriptor = pluginDescriptor;
+        this.buildBatchResolver = buildBatchResolver;
+        this.iframeUrlBuilder = iframeUrlBuilder;
+        this.batchSummaryStore = batchSummaryStore;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        if (!BatchStatusClient.isEnabled()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+        final long buildId;
+        try {
+            buildId = Long.parseLong(request.getParameter("buildId"));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        BuildBatch batch = buildBatchResolver.resolve(SessionUser.getUser(request), buildId);
+        if (batch == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+
+        SBuild build = batch.getBuild();
+        ModelAndView view = new ModelAndView(pluginDescriptor.getPluginResourcesPath("batchSummary.jsp"));
+        view.addObject("summary", getSummary(batch));
+        view.addObject("resultsURL", iframeUrlBuilder.getUrl(batch.getServerUrl(), build.getBuildTypeId(), build.getBuildNumber(), build.getBuildId()));
+        return view;
+    }
+
+    private BatchSummary getSummary(BuildBatch batch) {
+        if (batch.getApiKey() == null) return null;
+        try {
+            return batchSummaryStore.getSummary(batch.getBuild(), batch.getServerUrl(), batch.getApiKey(), batch.getBatchId());
+        } catch (IOException e) {
+            Loggers.SERVER.info("[Applitools] Failed to get the status of batch " + batch.getBatchId() + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.applitools.teamcity.pageExtension;
+
+import com.applitools.teamcity.Constants;
+import com.applitools.teamcity.batchStatus.BatchStatusClient;
+import jetbrains.buildServer.web.openapi.PagePlaces;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.SimplePageExtension;
+import org.jetbrains.annotations.NotNull;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+
+import static jetbrains.buildServer.web.openapi.PlaceId.ALL_PAGES_FOOTER;
+
+/**
+ * Adds a visual tests status indicator to the builds listed on project and build configuration pages.
+ * <p>
+ * The script finds the build rows on the page and, as they scroll into view, reads the status of all newly
+ * visible builds in one request to the {@link BatchStatusesController}.
+ */
+public class BuildListStatusExtension extends SimplePageExtension {
+
+  private static final String[] BUILD_LIST_PAGES = {
+      "/project.html", "/viewType.html", "/overview.html", "/favoriteBuilds.html",
+      "/project/", "/buildConfiguration/", "/favorite/"
+  };
+
+  public BuildListStatusExtension(@NotNull PagePlaces pagePlaces, @NotNull PluginDescriptor pluginDescriptor)
+  {
+    super(pagePlaces, ALL_PAGES_FOOTER, Constants.PLUGIN_ID, "buildListStatus.jsp");
+    addJsFile(pluginDescriptor.getPluginResourcesPath("buildListStatus.js"));
+    addCssFile(pluginDescriptor.getPluginResourcesPath("buildListStatus.css"));
+  }
+
+  @Override
+  public boolean isAvailable(@NotNull HttpServletRequest request)
+  {
+    if (!BatchStatusClient.isEnabled()) return false;
+    String uri = request.getRequestURI();
+    if (uri == null) return false;
+    for (String page : BUILD_LIST_PAGES) {
+      if (uri.contains(page)) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void fillModel(@NotNull Map<String, Object> model, @NotNull HttpServletRequest request)
+  {
+    super.fillModel(model, request);
+    model.put("statusesURL", BatchStatusesController.PATH);
+  }
+}
@@ -0,0 +1,109 @@
+package com.applitools.teamcity.pageExtension;
+
+import com.applitools.teamcity.Common;
+import com.applitools.teamcity.ExpiringLruCache;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the URL of the Eyes results page shown in the build results.
+ * <p>
+ * The Eyes app URL derived from each configured API server URL is cached, and so is the final URL of each build.
+ * A cached build URL is rebuilt when the build number or the server URL of the build changes.
+ */
+public class IframeUrlBuilder {
+
+    static final String CACHE_SIZE_PROPERTY = "teamcity.applitools.iframeUrl.cacheSize";
+
+    private static final String BATCHES_PATH = "/app/batchesnoauth/";
+    private static final String QUERY_SUFFIX = "&hideBatchList=true&intercom=false&agentId=eyes-teamcity-1.4.0";
+    private static final Pattern API_HOST = Pattern.compile("^([^.]+)api.(.*)$");
+
+    private final ExpiringLruCache<String, String> appUrls;
+    private final ExpiringLruCache<Long, BuildUrl> buildUrls;
+
+    public IframeUrlBuilder() {
+        this(TeamCityProperties.getInteger(CACHE_SIZE_PROPERTY, 1000));
+    }
+
+    public IframeUrlBuilder(int cacheSize) {
+        appUrls = new ExpiringLruCache<String, String>(Math.max(16, cacheSize / 100));
+        buildUrls = new ExpiringLruCache<Long, BuildUrl>(cacheSize);
+    }
+
+    /**
+     * @return the results page URL of the build batch, or an empty string if there is no server URL.
+     */
+    @NotNull
+    public String getUrl(@Nullable String serverUrl, @NotNull String buildTypeId, @NotNull String buildNumber, long buildId) {
+        if (serverUrl == null) return "";
+        BuildUrl buildUrl = buildUrls.get(buildId);
+        if (buildUrl == null || !buildUrl.serverUrl.equals(serverUrl) || !buildUrl.buildNumber.equals(buildNumber)) {
+            String appUrl = getAppUrl(serverUrl);
+            String url = appUrl.isEmpty() ? "" : appUrl + "?startInfoBatchId=" +
+                    encode(Common.generateBatchId(buildTypeId, buildNumber, buildId)) + QUERY_SUFFIX;
+            buildUrl = new BuildUrl(serverUrl, buildNumber, url);
+            buildUrls.put(buildId, buildUrl, ExpiringLruCache.NO_EXPIRATION);
+        }
+        return buildUrl.url;
+    }
+
+    /**
+     * @return the batches page of the Eyes app served next to the given API server,
+     * e.g. https://eyes.applitools.com/app/batchesnoauth/ for https://eyesapi.applitools.com,
+     * or an empty string if the server URL has no host.
+     */
+    @NotNull
+    String getAppUrl(@NotNull String serverUrl) {
+        String appUrl = appUrls.get(serverUrl);
+        if (appUrl == null) {
+            appUrl = toAppUrl(serverUrl + BATCHES_PATH);
+            appUrls.put(serverUrl, appUrl, ExpiringLruCache.NO_EXPIRATION);
+        }
+        return appUrl;
+    }
+
+    private static String toAppUrl(String apiUrl) {
+        try {
+            URI url = new URI(apiUrl, true, Charset.forName("UTF-8").toString());
+            String hostName = url.getHost();
+            if (hostName == null) return "";
+            Matcher matcher = API_HOST.matcher(hostName);
+            if (matcher.matches()) {
+                hostName = matcher.group(1) + "." + matcher.group(2);
+            }
+            return new URI(url.getScheme(), null, hostName, url.getPort(), url.getPath(), null).toString();
+        } catch (URIException e) {
+            return apiUrl;
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class BuildUrl {
+        private final String serverUrl;
+        private final String buildNumber;
+        private final String url;
+
+        private BuildUrl(String serverUrl, String buildNumber, String url) {
+            this.serverUrl = serverUrl;
+            this.buildNumber = buildNumber;
+            this.url = url;
+        }
+    }
+}
@@ -3,29 +3,33 @@ package com.applitools.teamcity.pageExtension;
 
 import javax.servlet.http.HttpServletRequest;
 import com.applitools.teamcity.Constants;
-import com.applitools.teamcity.Common;
+import com.applitools.teamcity.batchStatus.BatchStatusClient;
+import com.applitools.teamcity.buildFeature.ApplitoolsFeatureIndex;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.web.openapi.PagePlaces;
 import jetbrains.buildServer.web.openapi.SimplePageExtension;
-import org.apache.commons.httpclient.URI;
-import org.apache.commons.httpclient.URIException;
 import org.jetbrains.annotations.NotNull;
 
-import java.nio.charset.Charset;
-import java.util.Collection;
 import java.util.Map;
-import jetbrains.buildServer.util.EventDispatcher;
 
 import static jetbrains.buildServer.web.openapi.PlaceId.BUILD_RESULTS_FRAGMENT;
 
 public class OverviewPageExtension extends SimplePageExtension {
+  // isAvailable and fillModel are called for the same request, resolve the build and its feature once.
+  private static final String BUILD_ATTRIBUTE = OverviewPageExtension.class.getName() + ".build";
+  private static final String FEATURE_ATTRIBUTE = OverviewPageExtension.class.getName() + ".feature";
+
   private final SBuildServer sBuildServer;
+  private final ApplitoolsFeatureIndex featureIndex;
+  private final IframeUrlBuilder iframeUrlBuilder;
 
   public OverviewPageExtension(@NotNull PagePlaces pagePlaces, @NotNull SBuildServer sBuildServer,
-                               EventDispatcher<BuildServerListener> eventDispatcher)
+                               @NotNull ApplitoolsFeatureIndex featureIndex, @NotNull IframeUrlBuilder iframeUrlBuilder)
   {
     super(pagePlaces, BUILD_RESULTS_FRAGMENT, Constants.PLUGIN_ID, "overviewPageExtension.jsp");
     this.sBuildServer = sBuildServer;
+    this.featureIndex = featureIndex;
+    this.iframeUrlBuilder = iframeUrlBuilder;
   }
 
   @Override
@@ -33,58 +37,62 @@ public class OverviewPageExtension extends SimplePageExtension {
   {
     super.fillModel(model, request);
     final SBuild sBuild = getBuild(request);
-    model.put(Constants.APPLITOOLS_PROJECT_SERVER_URL_BEAN_ID, generateIframeURL(sBuild));
+    model.put(Constants.APPLITOOLS_PROJECT_SERVER_URL_BEAN_ID, generateIframeURL(sBuild, getApplitoolsBuildFeature(request, sBuild)));
+    // The summary is rendered by a separate request, the full results iframe is loaded only on demand.
+    // Without batch statuses the results iframe is shown right away.
+    final boolean batchStatusEnabled = BatchStatusClient.isEnabled();
+    model.put("summaryURL", batchStatusEnabled ? BatchSummaryController.PATH + "?buildId=" + sBuild.getBuildId() : "");
+    // Running builds follow the progress of their batch.
+    model.put("progressURL", batchStatusEnabled && !sBuild.isFinished() ? BatchProgressController.PATH + "?buildId=" + sBuild.getBuildId() : "");
   }
 
   @Override
   public boolean isAvailable(@NotNull HttpServletRequest request)
   {
     final SBuild sBuild = getBuild(request);
-    final SBuildFeatureDescriptor applitoolsBuildFeature = getApplitoolsBuildFeature(sBuild);
+    if (sBuild == null) return false;
+    final SBuildFeatureDescriptor applitoolsBuildFeature = getApplitoolsBuildFeature(request, sBuild);
     if (applitoolsBuildFeature != null) {
        return sBuild.getBuildType().isEnabled(applitoolsBuildFeature.getId());
     }
     return false;
   }
 
-  private String generateBatchId(SBuild sBuild) {
-    return Common.generateBatchId(sBuild.getBuildTypeId(), sBuild.getBuildNumber(), sBuild.getBuildId());
-  }
-
-  private String generateIframeURL(SBuild sBuild)
+  private String generateIframeURL(SBuild sBuild, SBuildFeatureDescriptor applitoolsBuildFeature)
   {
-    try {
-      String apiServerURL = getApplitoolsBuildFeature(sBuild).getParameters().get(Constants.APPLITOOLS_SERVER_URL_FIELD);
-      apiServerURL = apiServerURL + "/app/batchesnoauth/?startInfoBatchId=" + generateBatchId(sBuild) + "&hideBatchList=true&intercom=false&agentId=eyes-teamcity-1.4.0";
-      try {
-        URI serverUrl = new URI(apiServerURL, true, Charset.forName("UTF-8").toString());
-        String hostName = serverUrl.getHost();
-        hostName = hostName.replaceAll("^([^.]+)api.(.*)$", "$1.$2");
-        return new URI(serverUrl.getScheme(), null, hostName, serverUrl.getPort(),serverUrl.getPath(), serverUrl.getQuery()).toString();
-      } catch (URIException e) {
-        return apiServerURL;
-      }
-    }
-    catch(NullPointerException exception) {
-      return "";
-    }
+    if (applitoolsBuildFeature == null) return "";
+    String apiServerURL = applitoolsBuildFeature.getParameters().get(Constants.APPLITOOLS_SERVER_URL_FIELD);
+    return iframeUrlBuilder.getUrl(apiServerURL, sBuild.getBuildTypeId(), sBuild.getBuildNumber(), sBuild.getBuildId());
   }
 
-  private SBuildFeatureDescriptor getApplitoolsBuildFeature(SBuild build) {
-    Collection<SBuildFeatureDescriptor> features = build.getBuildType().getBuildFeatures();
-    if (features.isEmpty()) return null;
-    for (SBuildFeatureDescriptor feature : features) {
-      if (feature.getType().equals(Constants.APPLITOOLS_BUILD_FEATURE_TYPE)) {
-        return feature;
-      }
+  private SBuildFeatureDescriptor getApplitoolsBuildFeature(HttpServletRequest request, SBuild build) {
+    Object cached = request.getAttribute(FEATURE_ATTRIBUTE);
+    if (cached instanceof SBuildFeatureDescriptor) {
+      return (SBuildFeatureDescriptor) cached;
     }
-    return null;
+    final SBuildFeatureDescriptor feature = featureIndex.getApplitoolsBuildFeature(build.getBuildType());
+    if (feature != null) {
+      request.setAttribute(FEATURE_ATTRIBUTE, feature);
+    }
+    return feature;
   }
 
   private SBuild getBuild(HttpServletRequest request) {
+    Object cached = request.getAttribute(BUILD_ATTRIBUTE);
+    if (cached instanceof SBuild) {
+      return (SBuild) cached;
+    }
     final Long buildId;
-    buildId = Long.valueOf(request.getParameter("buildId"));
-    return sBuildServer.findBuildInstanceById(buildId);
+    try {
+      buildId = Long.valueOf(request.getParameter("buildId"));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    final SBuild build = sBuildServer.findBuildInstanceById(buildId);
+    if (build != null) {
+      request.setAttribute(BUILD_ATTRIBUTE, build);
+    }
+    return build;
   }
 
 }
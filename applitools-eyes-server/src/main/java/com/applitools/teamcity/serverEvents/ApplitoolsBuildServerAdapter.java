@@ -2,20 +2,17 @@ package com.applitools.teamcity.serverEvents;
 
 import com.applitools.teamcity.Common;
 import com.applitools.teamcity.Constants;
+import com.applitools.teamcity.batchStatus.BatchPoller;
+import com.applitools.teamcity.concurrency.ConcurrencyAllocator;
+import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
 import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.serverSide.buildLog.BuildLog;
 import jetbrains.buildServer.util.EventDispatcher;
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpException;
-import org.apache.commons.httpclient.URI;
-import org.apache.commons.httpclient.URIException;
-import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -24,17 +21,69 @@ import java.util.Date;
 
 public class ApplitoolsBuildServerAdapter extends BuildServerAdapter {
 
-    public ApplitoolsBuildServerAdapter(EventDispatcher<BuildServerListener> dispatcher) {
+    private final BatchCloseDispatcher batchCloseDispatcher;
+    private final BatchPoller batchPoller;
+    private final ConcurrencyAllocator concurrencyAllocator;
+
+    public ApplitoolsBuildServerAdapter(EventDispatcher<BuildServerListener> dispatcher,
+                                        @NotNull BatchCloseDispatcher batchCloseDispatcher,
+                                        @NotNull BatchPoller batchPoller,
+                                        @NotNull ConcurrencyAllocator concurrencyAllocator) {
+        this.batchCloseDispatcher = batchCloseDispatcher;
+        this.batchPoller = batchPoller;
+        this.concurrencyAllocator = concurrencyAllocator;
         dispatcher.addListener(this);
     }
 
+    @Override
+    public void serverStartup() {
+        batchCloseDispatcher.redeliverPending();
+    }
+
+    @Override
+    public void buildStarted(@NotNull SRunningBuild build) {
+        super.buildStarted(build);
+        for (SBuildFeatureDescriptor feature : build.getBuildFeaturesOfType(Constants.APPLITOOLS_BUILD_FEATURE_TYPE)) {
+            String apiKey = feature.getParameters().get(Constants.APPLITOOLS_API_KEY_FIELD);
+            if (apiKey != null && !apiKey.isEmpty()) {
+                batchPoller.track(Common.getServerUrl(feature.getParameters().get(Constants.APPLITOOLS_SERVER_URL_FIELD)), apiKey,
+                        Common.generateBatchId(build.getBuildTypeId(), build.getBuildNumber(), build.getBuildId()));
+            }
+        }
+    }
+
+    /**
+     * Called for every build, interrupted ones included, before {@link #buildFinished} or {@link #buildInterrupted}.
+     * The batch of a cancelled build is closed ahead of the other queued closes.
+     */
     @Override
     public void beforeBuildFinish(@NotNull SRunningBuild build) {
         super.buildFinished(build);
-        closeBatch(build);
+        batchPoller.untrack(Common.generateBatchId(build.getBuildTypeId(), build.getBuildNumber(), build.getBuildId()));
+        boolean cancelled = build.getCanceledInfo() != null;
+        if (cancelled) {
+            Loggers.SERVER.info("[Applitools] Build " + build.getBuildId() + " was cancelled, closing its batch ahead of the others");
+        }
+        closeBatch(build, cancelled);
+    }
+
+    @Override
+    public void buildInterrupted(@NotNull SRunningBuild build) {
+        super.buildInterrupted(build);
+        concurrencyAllocator.release(build.getBuildId());
+    }
+
+    @Override
+    public void buildFinished(@NotNull SRunningBuild build) {
+        super.buildFinished(build);
+        concurrencyAllocator.release(build.getBuildId());
     }
 
-    private void closeBatch(SRunningBuild build) {
+    /**
+     * Queues the batch close notification; the HTTP call itself is made by the {@link BatchCloseDispatcher} workers.
+     * Urgent closes are queued ahead of the others.
+     */
+    private void closeBatch(SRunningBuild build, boolean urgent) {
 
         Collection<SBuildFeatureDescriptor> features = build.getBuildFeaturesOfType(Constants.APPLITOOLS_BUILD_FEATURE_TYPE);
         for (SBuildFeatureDescriptor feature : features) {
@@ -43,27 +92,12 @@ public class ApplitoolsBuildServerAdapter extends BuildServerAdapter {
             String notifyByCompletion = feature.getParameters().get(Constants.APPLITOOLS_NOTIFY_BY_COMPLETION_FIELD);
             String batchId = Common.generateBatchId(build.getBuildTypeId(), build.getBuildNumber(), build.getBuildId());
             String serverUrl = Common.getServerUrl(feature.getParameters().get(Constants.APPLITOOLS_SERVER_URL_FIELD));
-            if (apiKey != null && !apiKey.isEmpty() && notifyByCompletion.equalsIgnoreCase("true")) {
-                HttpClient httpClient = new HttpClient();
+            if (apiKey != null && !apiKey.isEmpty() && "true".equalsIgnoreCase(notifyByCompletion)) {
                 BuildLog log = build.getBuildLog();
-                try {
-                    URI targetUrl = new URI(serverUrl, false);
-                    targetUrl.setPath(String.format(Constants.BATCH_NOTIFICATION_PATH, batchId));
-                    targetUrl.setQuery("apiKey=" + apiKey);
-                    DeleteMethod deleteRequest = new DeleteMethod(targetUrl.toString());
-                    try {
-                        log.progressMessage(String.format("Batch notification called with %s", batchId), new Date(System.currentTimeMillis()), "batchNotification", new ArrayList<String>());
-                        int statusCode = httpClient.executeMethod(deleteRequest);
-                        log.progressMessage("Delete batch is done with " + Integer.toString(statusCode) + " status", new Date(System.currentTimeMillis()), "batchNotification", new ArrayList<String>());
-                    } catch(HttpException exception) {
-                        log.progressMessage("Failed to complete HTTP request: " + exception.getMessage(), new Date(System.currentTimeMillis()), "batchNotification", new ArrayList<String>());
-                    } catch (IOException e) {
-                        log.progressMessage("Failed to complete HTTP request (IOException): " + e.getMessage(), new Date(System.currentTimeMillis()), "batchNotification", new ArrayList<String>());
-                    } finally {
-                        deleteRequest.releaseConnection();
-                    }
-                } catch (URIException exception) {
-                    log.progressMessage("Failed to get API endpoint URL: " + exception.getMessage(), new Date(System.currentTimeMillis()), "batchNotification", new ArrayList<String>());
+                BatchCloseRequest request = new BatchCloseRequest(batchId, serverUrl, apiKey, build.getBuildId(), log);
+                boolean queued = urgent ? batchCloseDispatcher.dispatchUrgent(request) : batchCloseDispatcher.dispatch(request);
+                if (!queued) {
+                    log.progressMessage(String.format("Batch notification for %s was postponed, the close queue is full", batchId), new Date(System.currentTimeMillis()), "batchNotification", new ArrayList<String>());
                 }
             }
         }
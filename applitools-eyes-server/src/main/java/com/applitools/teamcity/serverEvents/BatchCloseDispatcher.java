@@ -0,0 +1,314 @@
+package com.applitools.teamcity.serverEvents;
+
+import com.applitools.teamcity.batchStatus.BatchSummaryStore;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs batch close notifications on a dedicated worker pool, so server events never wait for the Applitools server.
+ * <p>
+ * The work queue is bounded. When it is full, new requests are dropped rather than blocking the caller.
+ * Requests for a batch that is already queued are coalesced into the queued one; a request for a batch whose close is
+ * already running is queued again.
+ * <p>
+ * Closes of interrupted builds are urgent: they are queued ahead of the other requests, and are never dropped
+ * because the queue is full. An urgent request for a batch already queued moves it to the front.
+ * <p>
+ * Every request is recorded in the {@link BatchCloseOutbox} until the Applitools server acknowledges it, so dropped
+ * and failed requests are delivered again periodically and after a server restart.
+ * <p>
+ * Once a batch is closed, the {@link BatchSummaryStore} is asked to store its final status with the build.
+ */
+public class BatchCloseDispatcher {
+
+    static final String WORKERS_PROPERTY = "teamcity.applitools.closeBatch.workers";
+    static final String QUEUE_CAPACITY_PROPERTY = "teamcity.applitools.closeBatch.queueCapacity";
+    static final String REDELIVERY_INTERVAL_PROPERTY = "teamcity.applitools.closeBatch.redeliveryIntervalSeconds";
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final BatchCloser batchCloser;
+    private final BatchCloseOutbox outbox;
+    private final BatchSummaryStore summaryStore;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService redeliveryExecutor;
+    private final int queueCapacity;
+    private final ConcurrentMap<String, CloseTask> pending = new ConcurrentHashMap<String, CloseTask>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong urgentSubmitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicBoolean saturated = new AtomicBoolean();
+
+    public BatchCloseDispatcher(@NotNull BatchCloser batchCloser, @NotNull BatchCloseOutbox outbox,
+                                @NotNull BatchSummaryStore summaryStore) {
+        this(batchCloser, outbox, summaryStore,
+                TeamCityProperties.getInteger(WORKERS_PROPERTY, 4),
+                TeamCityProperties.getInteger(QUEUE_CAPACITY_PROPERTY, 1000),
+                TeamCityProperties.getInteger(REDELIVERY_INTERVAL_PROPERTY, 300));
+    }
+
+    BatchCloseDispatcher(@NotNull BatchCloser batchCloser, @NotNull BatchCloseOutbox outbox,
+                         @NotNull BatchSummaryStore summaryStore,
+                         int workers, int queueCapacity, int redeliveryIntervalSeconds) {
+        this.batchCloser = batchCloser;
+        this.outbox = outbox;
+        this.summaryStore = summaryStore;
+        this.queueCapacity = queueCapacity;
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new WorkerThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.redeliveryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Applitools batch close redelivery");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.redeliveryExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                redeliverPending();
+            }
+        }, redeliveryIntervalSeconds, redeliveryIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Queues the request without blocking.
+     *
+     * @return false if the request was dropped because the queue is full or the dispatcher is stopped.
+     */
+    public boolean dispatch(@NotNull BatchCloseRequest request) {
+        return dispatch(request, false);
+    }
+
+    /**
+     * Queues the close of the batch of an interrupted build ahead of the other requests.
+     *
+     * @return false if the dispatcher is stopped.
+     */
+    public boolean dispatchUrgent(@NotNull BatchCloseRequest request) {
+        return dispatch(request, true);
+    }
+
+    private boolean dispatch(@NotNull BatchCloseRequest request, boolean urgentRequest) {
+        final String batchId = request.getBatchId();
+        CloseTask task = new CloseTask(request, urgentRequest, sequence.incrementAndGet());
+        while (true) {
+            CloseTask queued = pending.putIfAbsent(batchId, task);
+            if (queued == null) break;
+            if (queued.started) {
+                // the running close may have been sent already, this request needs its own
+                if (pending.replace(batchId, queued, task)) break;
+                continue;
+            }
+            // move a queued request ahead when it becomes urgent, unless a worker already took it
+            if (!urgentRequest || queued.urgent || !executor.remove(queued)) {
+                coalesced.incrementAndGet();
+                return true;
+            }
+            pending.put(batchId, task);
+            break;
+        }
+        // the task acknowledges its own request only, so a newer request for the batch stays in the outbox
+        outbox.add(request);
+        if (!urgentRequest && getQueueDepth() >= queueCapacity) {
+            // the priority queue is unbounded, the capacity applies to regular requests only
+            return reject(task);
+        }
+        try {
+            executor.execute(task);
+            submitted.incrementAndGet();
+            if (urgentRequest) {
+                urgentSubmitted.incrementAndGet();
+            }
+            updateSaturation();
+            return true;
+        } catch (RejectedExecutionException e) {
+            return reject(task);
+        }
+    }
+
+    private boolean reject(CloseTask task) {
+        String batchId = task.request.getBatchId();
+        pending.remove(batchId, task);
+        long total = dropped.incrementAndGet();
+        updateSaturation();
+        Loggers.SERVER.warn("[Applitools] Batch close queue is full, postponed close of batch " + batchId +
+                " (" + total + " dropped so far, " + describe() + ")");
+        return false;
+    }
+
+    /**
+     * Queues the requests left in the outbox by earlier failures, drops or server restarts.
+     */
+    public void redeliverPending() {
+        int redelivered = 0;
+        for (BatchCloseRequest request : outbox.getPendingRequests()) {
+            if (pending.containsKey(request.getBatchId())) continue;
+            if (!dispatch(request)) break;
+            redelivered++;
+        }
+        if (redelivered > 0) {
+            Loggers.SERVER.info("[Applitools] Redelivering " + redelivered + " pending batch close requests");
+        }
+    }
+
+    private void updateSaturation() {
+        boolean nowSaturated = getQueueDepth() >= queueCapacity;
+        if (saturated.compareAndSet(!nowSaturated, nowSaturated)) {
+            if (nowSaturated) {
+                Loggers.SERVER.warn("[Applitools] Batch close queue is saturated: " + describe());
+            } else {
+                Loggers.SERVER.info("[Applitools] Batch close queue has recovered: " + describe());
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getActiveWorkers() {
+        return executor.getActiveCount();
+    }
+
+    public boolean isSaturated() {
+        return saturated.get();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * @return the number of urgent requests queued, those of interrupted builds.
+     */
+    public long getUrgentCount() {
+        return urgentSubmitted.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getSucceededCount() {
+        return succeeded.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public String describe() {
+        return "queued=" + getQueueDepth() + "/" + queueCapacity +
+                ", active=" + getActiveWorkers() +
+                ", submitted=" + getSubmittedCount() +
+                ", urgent=" + getUrgentCount() +
+                ", coalesced=" + getCoalescedCount() +
+                ", dropped=" + getDroppedCount() +
+                ", succeeded=" + getSucceededCount() +
+                ", failed=" + getFailedCount() +
+                ", unacknowledged=" + outbox.getPendingCount();
+    }
+
+    /**
+     * Stops accepting requests and waits a short while for the queued ones to complete.
+     * Requests that do not complete stay in the outbox.
+     */
+    public void shutdown() {
+        redeliveryExecutor.shutdownNow();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Loggers.SERVER.warn("[Applitools] Batch close workers did not finish in time: " + describe());
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        Loggers.SERVER.info("[Applitools] Batch close dispatcher stopped: " + describe());
+    }
+
+    /**
+     * Closes one batch. Urgent tasks run first, the others in the order they were queued.
+     */
+    private class CloseTask implements Runnable, Comparable<CloseTask> {
+        private final BatchCloseRequest request;
+        private final boolean urgent;
+        private final long sequence;
+        private volatile boolean started;
+
+        private CloseTask(BatchCloseRequest request, boolean urgent, long sequence) {
+            this.request = request;
+            this.urgent = urgent;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            String batchId = request.getBatchId();
+            try {
+                if (batchCloser.close(request)) {
+                    outbox.acknowledge(request);
+                    succeeded.incrementAndGet();
+                    summaryStore.recordClosedBatch(request.getBuildId(), request.getServerUrl(), request.getApiKey(), batchId);
+                } else {
+                    failed.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                Loggers.SERVER.error("[Applitools] Unexpected error while closing batch " + batchId, e);
+            } finally {
+                pending.remove(batchId, this);
+            }
+        }
+
+        @Override
+        public int compareTo(@NotNull CloseTask other) {
+            if (urgent != other.urgent) return urgent ? -1 : 1;
+            return sequence < other.sequence ? -1 : sequence > other.sequence ? 1 : 0;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NotNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "Applitools batch close worker " + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
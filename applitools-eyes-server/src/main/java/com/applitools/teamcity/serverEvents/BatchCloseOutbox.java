@@ -0,0 +1,323 @@
+package com.applitools.teamcity.serverEvents;
+
+import com.applitools.teamcity.Common;
+import com.applitools.teamcity.Constants;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only journal of batch close requests that were not acknowledged by the Applitools server yet.
+ * <p>
+ * Records are appended by a single writer thread, which syncs the journal to disk once per group of records,
+ * so callers never wait for the disk. Pending requests are replayed after a server restart, and the journal is
+ * rewritten with only the pending requests once enough of them were acknowledged.
+ * <p>
+ * Only the batch id and the build id are written, never the Applitools API key. Requests replayed after a restart
+ * get their server URL and API key again from the build feature of their build.
+ */
+public class BatchCloseOutbox {
+
+    static final String JOURNAL_FILE_NAME = "batch-close-outbox.log";
+    static final String COMPACTION_THRESHOLD_PROPERTY = "teamcity.applitools.closeBatch.outbox.compactionThreshold";
+    static final String CAPACITY_PROPERTY = "teamcity.applitools.closeBatch.outbox.capacity";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char ADDED = 'A';
+    private static final char ACKNOWLEDGED = 'D';
+    private static final String STOP = "";
+
+    private final File journal;
+    private final int compactionThreshold;
+    private final SBuildServer sBuildServer;
+    private final ConcurrentMap<String, BatchCloseRequest> pendingRequests = new ConcurrentHashMap<String, BatchCloseRequest>();
+    // requests loaded from the journal, by batch id, with the build to get their server URL and API key from
+    private final ConcurrentMap<String, Long> unresolvedRequests = new ConcurrentHashMap<String, Long>();
+    private final BlockingQueue<String> records;
+    private final Thread writer;
+    private FileChannel channel;
+    private int acknowledgedSinceCompaction;
+    private volatile boolean stopped;
+
+    public BatchCloseOutbox(@NotNull ServerPaths serverPaths, @NotNull SBuildServer sBuildServer) {
+        this(new File(new File(serverPaths.getPluginDataDirectory(), Constants.PLUGIN_ID), JOURNAL_FILE_NAME), sBuildServer,
+                TeamCityProperties.getInteger(COMPACTION_THRESHOLD_PROPERTY, 1000),
+                TeamCityProperties.getInteger(CAPACITY_PROPERTY, 100000));
+    }
+
+    BatchCloseOutbox(@NotNull File journal, @NotNull SBuildServer sBuildServer, int compactionThreshold, int capacity) {
+        this.journal = journal;
+        this.sBuildServer = sBuildServer;
+        this.compactionThreshold = compactionThreshold;
+        this.records = new LinkedBlockingQueue<String>(capacity);
+        load();
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, "Applitools batch close outbox writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Records the request as pending. Returns immediately, the record reaches the disk shortly after.
+     */
+    public synchronized void add(@NotNull BatchCloseRequest request) {
+        boolean journaled = unresolvedRequests.remove(request.getBatchId()) != null;
+        if (pendingRequests.put(request.getBatchId(), request) == null && !journaled) {
+            enqueue(toRecord(request.getBatchId(), request.getBuildId()));
+        }
+    }
+
+    /**
+     * Removes the request from the pending ones, unless a newer request for its batch replaced it.
+     */
+    public synchronized void acknowledge(@NotNull BatchCloseRequest request) {
+        if (pendingRequests.remove(request.getBatchId(), request)) {
+            enqueue(ACKNOWLEDGED + "\t" + escape(request.getBatchId()));
+        }
+    }
+
+    /**
+     * Removes the request for the batch from the pending ones.
+     */
+    public synchronized void acknowledge(@NotNull String batchId) {
+        boolean removed = pendingRequests.remove(batchId) != null;
+        removed |= unresolvedRequests.remove(batchId) != null;
+        if (removed) {
+            enqueue(ACKNOWLEDGED + "\t" + escape(batchId));
+        }
+    }
+
+    /**
+     * @return the requests that were not acknowledged yet. Requests loaded from the journal have no build log
+     * attached; those whose build or Applitools feature is gone are acknowledged, they cannot be sent any more.
+     */
+    @NotNull
+    public Collection<BatchCloseRequest> getPendingRequests() {
+        for (Map.Entry<String, Long> entry : unresolvedRequests.entrySet()) {
+            String batchId = entry.getKey();
+            BatchCloseRequest request = resolve(batchId, entry.getValue());
+            if (request == null) {
+                Loggers.SERVER.warn("[Applitools] Dropping pending close of batch " + batchId + ", its build " +
+                        entry.getValue() + " or its Applitools feature no longer exists");
+                acknowledge(batchId);
+            } else if (unresolvedRequests.remove(batchId, entry.getValue())) {
+                pendingRequests.putIfAbsent(batchId, request);
+            }
+        }
+        return new ArrayList<BatchCloseRequest>(pendingRequests.values());
+    }
+
+    public int getPendingCount() {
+        return pendingRequests.size() + unresolvedRequests.size();
+    }
+
+    @Nullable
+    private BatchCloseRequest resolve(String batchId, long buildId) {
+        SBuild build = sBuildServer.findBuildInstanceById(buildId);
+        if (build == null) return null;
+        for (SBuildFeatureDescriptor feature : build.getBuildFeaturesOfType(Constants.APPLITOOLS_BUILD_FEATURE_TYPE)) {
+            String apiKey = feature.getParameters().get(Constants.APPLITOOLS_API_KEY_FIELD);
+            if (apiKey == null || apiKey.isEmpty()) continue;
+            String serverUrl = Common.getServerUrl(feature.getParameters().get(Constants.APPLITOOLS_SERVER_URL_FIELD));
+            return new BatchCloseRequest(batchId, serverUrl, apiKey, buildId, null);
+        }
+        return null;
+    }
+
+    /**
+     * Writes the remaining records to disk and stops the writer thread.
+     */
+    public void shutdown() {
+        stopped = true;
+        try {
+            records.put(STOP);
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Loggers.SERVER.info("[Applitools] Batch close outbox stopped with " + getPendingCount() + " pending requests");
+    }
+
+    private void enqueue(String record) {
+        if (stopped || !records.offer(record)) {
+            Loggers.SERVER.warn("[Applitools] Batch close outbox is not accepting records, not persisted: " + record.substring(0, 1) +
+                    " " + record.split("\t")[1]);
+        }
+    }
+
+    private void load() {
+        if (journal.isFile()) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), UTF_8));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] fields = line.split("\t", -1);
+                        char type = fields[0].length() == 1 ? fields[0].charAt(0) : 0;
+                        if (fields.length == 3 && type == ADDED) {
+                            String batchId = unescape(fields[1]);
+                            try {
+                                unresolvedRequests.put(batchId, Long.parseLong(fields[2]));
+                            } catch (NumberFormatException e) {
+                                Loggers.SERVER.warn("[Applitools] Skipping malformed batch close outbox record in " + journal);
+                            }
+                        } else if (fields.length == 2 && type == ACKNOWLEDGED) {
+                            pendingRequests.remove(unescape(fields[1]));
+                            unresolvedRequests.remove(unescape(fields[1]));
+                        } else if (!line.isEmpty()) {
+                            // A record torn by a crash, it was never acknowledged to the caller.
+                            Loggers.SERVER.warn("[Applitools] Skipping malformed batch close outbox record in " + journal);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+                Loggers.SERVER.info("[Applitools] Loaded " + getPendingCount() + " pending batch close requests from " + journal);
+            } catch (IOException e) {
+                Loggers.SERVER.error("[Applitools] Failed to read batch close outbox " + journal, e);
+            }
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            Loggers.SERVER.error("[Applitools] Failed to open batch close outbox " + journal, e);
+        }
+    }
+
+    private void writeRecords() {
+        List<String> group = new ArrayList<String>();
+        boolean running = true;
+        while (running) {
+            try {
+                group.add(records.take());
+                records.drainTo(group);
+                StringBuilder data = new StringBuilder();
+                for (String record : group) {
+                    if (record.isEmpty()) {
+                        running = false;
+                    } else {
+                        data.append(record).append('\n');
+                        if (record.charAt(0) == ACKNOWLEDGED) acknowledgedSinceCompaction++;
+                    }
+                }
+                write(data);
+                if (acknowledgedSinceCompaction >= compactionThreshold) {
+                    compact();
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (IOException e) {
+                Loggers.SERVER.error("[Applitools] Failed to write " + group.size() + " records to batch close outbox " + journal, e);
+            } finally {
+                group.clear();
+            }
+        }
+        closeChannel();
+    }
+
+    private void write(CharSequence data) throws IOException {
+        if (data.length() == 0) return;
+        if (channel == null) {
+            // The journal could not be reopened earlier, start over from the pending requests.
+            compact();
+        }
+        ByteBuffer buffer = UTF_8.encode(data.toString());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Replaces the journal with one holding only the pending requests and reopens it for appending.
+     */
+    private void compact() throws IOException {
+        closeChannel();
+        File directory = journal.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        File temp = new File(directory, journal.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            StringBuilder data = new StringBuilder();
+            for (BatchCloseRequest request : pendingRequests.values()) {
+                data.append(toRecord(request.getBatchId(), request.getBuildId())).append('\n');
+            }
+            for (Map.Entry<String, Long> entry : unresolvedRequests.entrySet()) {
+                data.append(toRecord(entry.getKey(), entry.getValue())).append('\n');
+            }
+            out.write(data.toString().getBytes(UTF_8));
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        acknowledgedSinceCompaction = 0;
+        channel = new FileOutputStream(journal, true).getChannel();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Loggers.SERVER.warn("[Applitools] Failed to close batch close outbox " + journal, e);
+            }
+            channel = null;
+        }
+    }
+
+    private static String toRecord(String batchId, long buildId) {
+        return ADDED + "\t" + escape(batchId) + "\t" + buildId;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) return value;
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package com.applitools.teamcity.serverEvents;
+
+import jetbrains.buildServer.serverSide.buildLog.BuildLog;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A pending batch close notification for a single Applitools batch.
+ */
+public class BatchCloseRequest {
+
+    private final String batchId;
+    private final String serverUrl;
+    private final String apiKey;
+    private final long buildId;
+    private final BuildLog buildLog;
+
+    public BatchCloseRequest(@NotNull String batchId, @NotNull String serverUrl, @NotNull String apiKey,
+                             long buildId, @Nullable BuildLog buildLog) {
+        this.batchId = batchId;
+        this.serverUrl = serverUrl;
+        this.apiKey = apiKey;
+        this.buildId = buildId;
+        this.buildLog = buildLog;
+    }
+
+    @NotNull
+    public String getBatchId() {
+        return batchId;
+    }
+
+    @NotNull
+    public String getServerUrl() {
+        return serverUrl;
+    }
+
+    @NotNull
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    /**
+     * @return the id of the build that owns the batch, or 0 when the request was loaded from the outbox.
+     */
+    public long getBuildId() {
+        return buildId;
+    }
+
+    /**
+     * @return the log of the build that owns the batch, or null when the build is no longer running.
+     */
+    @Nullable
+    public BuildLog getBuildLog() {
+        return buildLog;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchCloseRequest{batchId=" + batchId + ", serverUrl=" + serverUrl + "}";
+    }
+}
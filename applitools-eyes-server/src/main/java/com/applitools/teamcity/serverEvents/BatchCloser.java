@@ -0,0 +1,78 @@
+package com.applitools.teamcity.serverEvents;
+
+import com.applitools.teamcity.Constants;
+import com.applitools.teamcity.EyesRequestExecutor;
+import com.applitools.teamcity.http.ApplitoolsHttpClient;
+import com.applitools.teamcity.http.ApplitoolsRequestExecutor;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.buildLog.BuildLog;
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Sends the batch close notification to the Applitools server.
+ */
+public class BatchCloser {
+
+    private final ApplitoolsHttpClient httpClient;
+    private final ApplitoolsRequestExecutor requestExecutor;
+
+    public BatchCloser(@NotNull ApplitoolsHttpClient httpClient, @NotNull ApplitoolsRequestExecutor requestExecutor) {
+        this.httpClient = httpClient;
+        this.requestExecutor = requestExecutor;
+    }
+
+    /**
+     * Closes the batch described by the request, retrying transient failures.
+     *
+     * @return true if the request is done with: the batch was closed, or the server rejected the request for good.
+     */
+    public boolean close(@NotNull BatchCloseRequest request) {
+        try {
+            URI targetUrl = new URI(request.getServerUrl(), false);
+            targetUrl.setPath(String.format(Constants.BATCH_NOTIFICATION_PATH, request.getBatchId()));
+            targetUrl.setQuery("apiKey=" + request.getApiKey());
+            final String url = targetUrl.toString();
+            try {
+                log(request, String.format("Batch notification called with %s", request.getBatchId()));
+                int statusCode = requestExecutor.execute(request.getServerUrl(), new EyesRequestExecutor.Request() {
+                    @Override
+                    public int execute() throws IOException {
+                        DeleteMethod deleteRequest = new DeleteMethod(url);
+                        try {
+                            return httpClient.executeMethod(deleteRequest);
+                        } finally {
+                            deleteRequest.releaseConnection();
+                        }
+                    }
+                });
+                log(request, "Delete batch is done with " + Integer.toString(statusCode) + " status");
+                return !EyesRequestExecutor.isRetryable(statusCode);
+            } catch (EyesRequestExecutor.CircuitOpenException exception) {
+                log(request, "Batch notification postponed: " + exception.getMessage());
+            } catch(HttpException exception) {
+                log(request, "Failed to complete HTTP request: " + exception.getMessage());
+            } catch (IOException e) {
+                log(request, "Failed to complete HTTP request (IOException): " + e.getMessage());
+            }
+        } catch (URIException exception) {
+            log(request, "Failed to get API endpoint URL: " + exception.getMessage());
+        }
+        return false;
+    }
+
+    static void log(BatchCloseRequest request, String message) {
+        Loggers.SERVER.info("[Applitools] " + message);
+        BuildLog log = request.getBuildLog();
+        if (log != null) {
+            log.progressMessage(message, new Date(System.currentTimeMillis()), "batchNotification", new ArrayList<String>());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.applitools.teamcity.serverEvents;
+
+import com.applitools.teamcity.Common;
+import com.applitools.teamcity.Constants;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.messages.BuildMessage1;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
+import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.ServiceMessageTranslator;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Handles the {@code applitoolsEyes} service messages of the agent that let a batch be closed before its build
+ * finishes.
+ * <p>
+ * {@code event='closeBatch'} is sent when the step set in the "Close batch after step" field of the build feature
+ * ends; the close is queued on the {@link BatchCloseDispatcher}. The batch is closed again at build finish.
+ */
+public class EyesStepMessageTranslator implements ServiceMessageTranslator {
+
+    private final BatchCloseDispatcher batchCloseDispatcher;
+
+    public EyesStepMessageTranslator(@NotNull BatchCloseDispatcher batchCloseDispatcher) {
+        this.batchCloseDispatcher = batchCloseDispatcher;
+    }
+
+    @NotNull
+    @Override
+    public String getServiceMessageName() {
+        return Constants.EYES_SERVICE_MESSAGE;
+    }
+
+    @NotNull
+    @Override
+    public List<BuildMessage1> translate(@NotNull SRunningBuild build, @NotNull BuildMessage1 originalMessage,
+                                         @NotNull ServiceMessage serviceMessage) {
+        Map<String, String> attributes = serviceMessage.getAttributes();
+        if (Constants.EYES_EVENT_CLOSE_BATCH.equals(attributes.get("event"))) {
+            closeBatch(build, attributes.get("runnerId"));
+        }
+        return Collections.singletonList(originalMessage);
+    }
+
+    private void closeBatch(SRunningBuild build, String runnerId) {
+        String batchId = Common.generateBatchId(build.getBuildTypeId(), build.getBuildNumber(), build.getBuildId());
+        for (SBuildFeatureDescriptor feature : build.getBuildFeaturesOfType(Constants.APPLITOOLS_BUILD_FEATURE_TYPE)) {
+            String apiKey = feature.getParameters().get(Constants.APPLITOOLS_API_KEY_FIELD);
+            String notifyByCompletion = feature.getParameters().get(Constants.APPLITOOLS_NOTIFY_BY_COMPLETION_FIELD);
+            if (apiKey == null || apiKey.isEmpty() || !"true".equalsIgnoreCase(notifyByCompletion)) continue;
+            String serverUrl = Common.getServerUrl(feature.getParameters().get(Constants.APPLITOOLS_SERVER_URL_FIELD));
+            Loggers.SERVER.info("[Applitools] Closing batch " + batchId + " after step " + runnerId + " of build " + build.getBuildId());
+            batchCloseDispatcher.dispatch(new BatchCloseRequest(batchId, serverUrl, apiKey, build.getBuildId(), build.getBuildLog()));
+        }
+    }
+}
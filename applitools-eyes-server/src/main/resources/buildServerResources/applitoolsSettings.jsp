@@ -30,6 +30,14 @@
     </td>
 </tr>
 
+<tr id="applitoolsPlugin.closeBatchAfterStep.container">
+    <th><label for="applitoolsPlugin.closeBatchAfterStep">Close batch after step:</label></th>
+    <td>
+        <props:textProperty name="applitoolsPlugin.closeBatchAfterStep"/>
+        <span class="smallNote">The name or id of the last build step running Eyes tests. When set with notify by completion, the batch is closed as soon as this step ends, and again when the build finishes.</span>
+    </td>
+</tr>
+
 <tr id="applitoolsPlugin.eyesScmIntegrationEnabled.container">
     <th><label for="applitoolsPlugin.eyesScmIntegrationEnabled">Eyes SCM Integration Enabled:</label></th>
     <td>
@@ -37,3 +45,10 @@
     </td>
 </tr>
 
+<tr id="applitoolsPlugin.concurrencyLimit.container">
+    <th><label for="applitoolsPlugin.concurrencyLimit">Account concurrency limit:</label></th>
+    <td>
+        <props:textProperty name="applitoolsPlugin.concurrencyLimit"/>
+        <span class="smallNote">The number of tests the Applitools account may run at once. When set, it is divided among the running builds and exported to them as APPLITOOLS_CONCURRENCY.</span>
+    </td>
+</tr>
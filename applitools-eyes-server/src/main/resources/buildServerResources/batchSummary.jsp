@@ -0,0 +1,20 @@
+<%@include file="/include.jsp"%>
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core"%>
+<jsp:useBean id="resultsURL" type="java.lang.String" scope="request"/>
+<c:choose>
+  <c:when test="${empty summary}">
+    <span>Applitools batch results are not available yet.</span>
+  </c:when>
+  <c:otherwise>
+    <strong>Applitools: <c:out value="${summary.status}"/></strong>
+    &nbsp;<c:out value="${summary.testsCount}"/> tests, <c:out value="${summary.stepsCount}"/> steps:
+    <c:out value="${summary.passedCount}"/> passed,
+    <c:out value="${summary.failedCount}"/> failed,
+    <c:out value="${summary.unresolvedCount}"/> unresolved,
+    <c:out value="${summary.newCount}"/> new<c:if test="${summary.runningCount > 0}">,
+    <c:out value="${summary.runningCount}"/> running</c:if>.
+  </c:otherwise>
+</c:choose>
+<c:if test="${not empty resultsURL}">
+  &nbsp;<a href="<c:out value="${resultsURL}"/>" target="_blank" rel="noopener noreferrer">Open in Applitools</a>
+</c:if>
@@ -0,0 +1,175 @@
+/*
+ * Shows the Applitools batch status next to the builds listed on project and build configuration pages.
+ *
+ * Builds are found by their result links. Statuses are requested only for builds that scroll into view, and all
+ * builds that became visible within a short delay are read with a single request to the batch statuses endpoint.
+ * Final statuses are kept for the page, so rows re-rendered by TeamCity do not request them again. Running builds
+ * are refreshed, and failed reads retried, with one timer per build while the page still shows the build.
+ */
+var ApplitoolsBuildList = (function($) {
+  var BATCH_DELAY_MS = 100;
+  var MAX_BUILDS_PER_REQUEST = 100;
+  var RUNNING_REFRESH_MS = 30000;
+  var ERROR_RETRY_MS = 60000;
+  var BUILD_LINK = 'a[href*="viewLog.html?buildId="], a[href*="/buildConfiguration/"]';
+
+  var statusesURL;
+  var observer;
+  var statuses = {};
+  var indicators = {};
+  var queued = {};
+  var refreshTimers = {};
+  var timer = null;
+
+  function buildIdOf(link) {
+    var href = link.getAttribute('href') || '';
+    var match = /[?&]buildId=(\d+)/.exec(href) || /\/buildConfiguration\/[^\/?#]+\/(\d+)(?:[?#\/]|$)/.exec(href);
+    return match ? match[1] : null;
+  }
+
+  function isFinal(status) {
+    return status !== undefined && status.status !== 'Running' && status.status !== 'Error';
+  }
+
+  function attach(root) {
+    $(root).find(BUILD_LINK).addBack(BUILD_LINK).each(function() {
+      var row = $(this).closest('tr');
+      if (row.length === 0 || row.data('applitoolsStatus')) return;
+      var buildId = buildIdOf(this);
+      if (!buildId) return;
+      var indicator = $('<span class="applitoolsStatus applitoolsStatus_Loading" title="Visual tests"></span>');
+      row.data('applitoolsStatus', true);
+      $(this).after(indicator);
+      indicator[0].setAttribute('data-build-id', buildId);
+      (indicators[buildId] = indicators[buildId] || []).push(indicator[0]);
+      if (statuses[buildId]) {
+        render(indicator[0], statuses[buildId]);
+      }
+      if (isFinal(statuses[buildId])) return;
+      if (observer) {
+        observer.observe(indicator[0]);
+      } else {
+        enqueue(buildId);
+      }
+    });
+  }
+
+  function onVisible(entries) {
+    $.each(entries, function(i, entry) {
+      if (!entry.isIntersecting) return;
+      observer.unobserve(entry.target);
+      enqueue(entry.target.getAttribute('data-build-id'));
+    });
+  }
+
+  function enqueue(buildId) {
+    if (isFinal(statuses[buildId])) return;
+    queued[buildId] = true;
+    if (timer === null) {
+      timer = setTimeout(flush, BATCH_DELAY_MS);
+    }
+  }
+
+  function flush() {
+    timer = null;
+    var buildIds = [];
+    for (var buildId in queued) {
+      if (queued.hasOwnProperty(buildId)) {
+        buildIds.push(buildId);
+        delete queued[buildId];
+        if (buildIds.length === MAX_BUILDS_PER_REQUEST) break;
+      }
+    }
+    if (buildIds.length === 0) return;
+    $.ajax({
+      url: statusesURL,
+      data: {buildIds: buildIds.join(',')},
+      dataType: 'json',
+      cache: false
+    }).done(function(response) {
+      $.each(response.builds || [], function(i, status) {
+        update(String(status.buildId), status);
+      });
+    }).fail(function() {
+      $.each(buildIds, function(i, buildId) {
+        update(buildId, {status: 'Error'});
+      });
+    });
+    if (!$.isEmptyObject(queued)) {
+      timer = setTimeout(flush, BATCH_DELAY_MS);
+    }
+  }
+
+  // drops the indicators of rows TeamCity has removed or replaced meanwhile
+  function shown(buildId) {
+    indicators[buildId] = $.grep(indicators[buildId] || [], function(indicator) {
+      return $.contains(document.documentElement, indicator);
+    });
+    if (indicators[buildId].length === 0) {
+      delete indicators[buildId];
+      return false;
+    }
+    return true;
+  }
+
+  function update(buildId, status) {
+    statuses[buildId] = status;
+    clearTimeout(refreshTimers[buildId]);
+    delete refreshTimers[buildId];
+    // builds no longer on the page are refreshed again only if a row shows them later
+    if (!shown(buildId)) return;
+    $.each(indicators[buildId], function(i, indicator) {
+      render(indicator, status);
+    });
+    if (!isFinal(status)) {
+      refreshTimers[buildId] = setTimeout(function() {
+        delete refreshTimers[buildId];
+        if (shown(buildId)) {
+          enqueue(buildId);
+        }
+      }, status.status === 'Error' ? ERROR_RETRY_MS : RUNNING_REFRESH_MS);
+    }
+  }
+
+  function render(indicator, status) {
+    var element = $(indicator);
+    if (status.status === 'NotFound') {
+      element.remove();
+      return;
+    }
+    element.attr('class', 'applitoolsStatus applitoolsStatus_' + status.status);
+    if (status.tests === undefined) {
+      element.text(status.status === 'NotStarted' ? 'Visual: -' : 'Visual: ?');
+      element.attr('title', status.status === 'NotStarted' ? 'No visual tests yet' : 'Visual test results are not available');
+      return;
+    }
+    element.text('Visual: ' + status.passed + '/' + status.tests);
+    element.attr('title', 'Visual tests ' + status.status + ': ' + status.passed + ' passed, ' + status.failed + ' failed, ' +
+                          status.unresolved + ' unresolved, ' + status.new + ' new, ' + status.running + ' running');
+  }
+
+  return {
+    init: function(url) {
+      if (statusesURL) return;
+      statusesURL = url;
+      if (window.IntersectionObserver) {
+        observer = new IntersectionObserver(onVisible, {rootMargin: '200px'});
+      }
+      $(function() {
+        attach(document.body);
+        // build lists are refreshed and expanded in place
+        if (window.MutationObserver) {
+          new MutationObserver(function(mutations) {
+            $.each(mutations, function(i, mutation) {
+              $.each(mutation.addedNodes, function(j, node) {
+                if (node.nodeType === 1 && !$(node).hasClass('applitoolsStatus')) {
+                  attach(node);
+                }
+              });
+            });
+          }).observe(document.body, {childList: true, subtree: true});
+        }
+      });
+    }
+  };
+})($j);
@@ -0,0 +1,9 @@
+<%@include file="/include.jsp"%>
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core"%>
+<jsp:useBean id="statusesURL" type="java.lang.String" scope="request"/>
+<c:url var="applitoolsStatusesURL" value="${statusesURL}"/>
+<script type="text/javascript">
+  if (window.ApplitoolsBuildList) {
+    ApplitoolsBuildList.init('${applitoolsStatusesURL}');
+  }
+</script>
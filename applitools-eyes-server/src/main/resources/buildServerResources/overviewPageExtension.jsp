@@ -1,6 +1,59 @@
 <%@include file="/include.jsp"%>
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core"%>
 <jsp:useBean id="serverURL" type="java.lang.String" scope="request"/>
+<jsp:useBean id="summaryURL" type="java.lang.String" scope="request"/>
+<jsp:useBean id="progressURL" type="java.lang.String" scope="request"/>
+<c:choose>
+<c:when test="${empty summaryURL}">
 <iframe id="applitoolsFrame" src="${serverURL}"
     data-iframe-height
-    style="overflow:hidden;overflow-x:hidden;overflow-y:hidden;height:600px;width:100%;resize:vertical;">
\ No newline at end of file
+    style="overflow:hidden;overflow-x:hidden;overflow-y:hidden;height:600px;width:100%;resize:vertical;"></iframe>
+</c:when>
+<c:otherwise>
+<c:url var="applitoolsSummaryURL" value="${summaryURL}"/>
+<c:if test="${not empty progressURL}"><c:url var="applitoolsProgressURL" value="${progressURL}"/></c:if>
+<div id="applitoolsSummary">Loading Applitools results&hellip;</div>
+<div id="applitoolsProgress" style="display:none;"></div>
+<a href="#" id="applitoolsShowResults">Show full Applitools results</a>
+<iframe id="applitoolsFrame" data-src="${serverURL}"
+    data-iframe-height
+    style="display:none;overflow:hidden;overflow-x:hidden;overflow-y:hidden;height:600px;width:100%;resize:vertical;"></iframe>
+<script type="text/javascript">
+  (function($) {
+    function loadSummary() {
+      $('#applitoolsSummary').load('${applitoolsSummaryURL}', function(response, status) {
+        if (status === 'error') {
+          $(this).text('Applitools results are not available.');
+        }
+      });
+    }
+    loadSummary();
+
+    var progressURL = '${applitoolsProgressURL}';
+    if (progressURL && window.EventSource) {
+      var progress = new EventSource(progressURL);
+      progress.addEventListener('progress', function(event) {
+        var batch = JSON.parse(event.data);
+        if (batch.tests === undefined) return;
+        $('#applitoolsProgress').text('Visual tests ' + batch.status + ': ' + batch.completed + ' of ' + batch.tests +
+                                      ' completed, ' + batch.diffs + ' with differences').show();
+      });
+      progress.addEventListener('end', function() {
+        progress.close();
+        $('#applitoolsProgress').hide();
+        loadSummary();
+      });
+    }
+    $('#applitoolsShowResults').on('click', function(event) {
+      event.preventDefault();
+      var frame = $('#applitoolsFrame');
+      if (!frame.attr('src')) {
+        frame.attr('src', frame.data('src'));
+      }
+      frame.show();
+      $(this).hide();
+    });
+  })($j);
+</script>
+</c:otherwise>
+</c:choose>
@@ -0,0 +1,145 @@
+package com.applitools.teamcity.concurrency;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ConcurrencyAllocatorTest {
+
+    private static final String ACCOUNT = "https://eyesapi.applitools.com#key";
+
+    @Test
+    public void firstBuildLeavesRoomForTheExpectedBuilds() {
+        ConcurrencyAllocator allocator = new ConcurrencyAllocator(4);
+        assertEquals(allocator.allocate(ACCOUNT, 10, 1), 2);
+        assertEquals(allocator.allocate(ACCOUNT, 10, 2), 2);
+        assertEquals(allocator.allocate(ACCOUNT, 10, 3), 2);
+        assertEquals(allocator.allocate(ACCOUNT, 10, 4), 2);
+        assertEquals(allocator.getGranted(ACCOUNT), 8);
+    }
+
+    @Test
+    public void moreBuildsThanExpectedGetWhatIsLeft() {
+        ConcurrencyAllocator allocator = new ConcurrencyAllocator(2);
+        assertEquals(allocator.allocate(ACCOUNT, 9, 1), 4);
+        assertEquals(allocator.allocate(ACCOUNT, 9, 2), 4);
+        assertEquals(allocator.allocate(ACCOUNT, 9, 3), 1);
+        assertEquals(allocator.allocate(ACCOUNT, 9, 4), 0);
+        assertEquals(allocator.getGranted(ACCOUNT), 9);
+        assertEquals(allocator.getBuildCount(ACCOUNT), 3);
+    }
+
+    @Test
+    public void everyBuildGetsOneTestUntilTheLimit() {
+        ConcurrencyAllocator allocator = new ConcurrencyAllocator(4);
+        assertEquals(allocator.allocate(ACCOUNT, 2, 1), 1);
+        assertEquals(allocator.allocate(ACCOUNT, 2, 2), 1);
+        assertEquals(allocator.allocate(ACCOUNT, 2, 3), 0);
+        assertEquals(allocator.getGranted(ACCOUNT), 2);
+    }
+
+    @Test
+    public void buildKeepsItsShare() {
+        ConcurrencyAllocator allocator = new ConcurrencyAllocator(4);
+        assertEquals(allocator.allocate(ACCOUNT, 8, 1), 2);
+        assertEquals(allocator.allocate(ACCOUNT, 8, 1), 2);
+        assertEquals(allocator.getBuildCount(ACCOUNT), 1);
+    }
+
+    @Test
+    public void releasedShareGoesToTheNextBuild() {
+        ConcurrencyAllocator allocator = new ConcurrencyAllocator(1);
+        assertEquals(allocator.allocate(ACCOUNT, 4, 1), 4);
+        assertEquals(allocator.allocate(ACCOUNT, 4, 2), 0);
+        allocator.release(1);
+        assertEquals(allocator.getGranted(ACCOUNT), 0);
+        assertEquals(allocator.allocate(ACCOUNT, 4, 2), 4);
+    }
+
+    @Test
+    public void peekDoesNotGrant() {
+        ConcurrencyAllocator allocator = new ConcurrencyAllocator(4);
+        assertEquals(allocator.peekShare(ACCOUNT, 10, 0), 2);
+        assertEquals(allocator.getGranted(ACCOUNT), 0);
+        assertEquals(allocator.getBuildCount(ACCOUNT), 0);
+    }
+
+    @Test
+    public void peekCountsTheShareOfEachStartingBuild() {
+        ConcurrencyAllocator allocator = new ConcurrencyAllocator(4);
+        assertEquals(allocator.allocate(ACCOUNT, 10, 1), 2);
+        // shares of 2, 2 and 2 for the running build and two starting ones, then 2 and 0
+        assertEquals(allocator.peekShare(ACCOUNT, 10, 2), 2);
+        assertEquals(allocator.peekShare(ACCOUNT, 10, 3), 2);
+        assertEquals(allocator.peekShare(ACCOUNT, 10, 4), 0);
+    }
+
+    @Test
+    public void roundOfLimitBuildsStartsOnlyBuildsWithAShare() {
+        int limit = 10;
+        ConcurrencyAllocator allocator = new ConcurrencyAllocator(4);
+        // the capacity precondition lets a build start when it would get a share after the builds already starting
+        int starting = 0;
+        for (int i = 0; i < limit; i++) {
+            if (allocator.peekShare(ACCOUNT, limit, starting) > 0) {
+                starting++;
+            }
+        }
+        assertEquals(starting, 5);
+        for (long buildId = 1; buildId <= starting; buildId++) {
+            assertTrue(allocator.allocate(ACCOUNT, limit, buildId) > 0, "build " + buildId + " started without a share");
+        }
+        assertEquals(allocator.getGranted(ACCOUNT), limit);
+        assertEquals(allocator.peekShare(ACCOUNT, limit, 0), 0);
+    }
+
+    @Test
+    public void restoredSharesCountAgainstTheLimit() {
+        ConcurrencyAllocator allocator = new ConcurrencyAllocator(4);
+        allocator.restore(ACCOUNT, 10, 1, 4);
+        allocator.restore(ACCOUNT, 10, 2, 4);
+        assertEquals(allocator.getGranted(ACCOUNT), 8);
+        assertEquals(allocator.peekShare(ACCOUNT, 10, 0), 2);
+        assertEquals(allocator.peekShare(ACCOUNT, 10, 1), 0);
+        assertEquals(allocator.allocate(ACCOUNT, 10, 3), 2);
+        assertEquals(allocator.allocate(ACCOUNT, 10, 4), 0);
+    }
+
+    @Test
+    public void restoreKeepsAGrantMadeAfterTheRestart() {
+        ConcurrencyAllocator allocator = new ConcurrencyAllocator(4);
+        assertEquals(allocator.allocate(ACCOUNT, 10, 1), 2);
+        allocator.restore(ACCOUNT, 10, 1, 5);
+        assertEquals(allocator.getGranted(ACCOUNT), 2);
+    }
+
+    @Test
+    public void grantsNeverExceedTheLimit() {
+        Random random = new Random(42);
+        for (int expectedBuilds = 1; expectedBuilds <= 8; expectedBuilds++) {
+            for (int limit = 1; limit <= 30; limit++) {
+                ConcurrencyAllocator allocator = new ConcurrencyAllocator(expectedBuilds);
+                List<Long> running = new ArrayList<Long>();
+                for (long buildId = 1; buildId <= 200; buildId++) {
+                    if (!running.isEmpty() && random.nextInt(3) == 0) {
+                        allocator.release(running.remove(random.nextInt(running.size())));
+                    }
+                    int share = allocator.allocate(ACCOUNT, limit, buildId);
+                    int granted = allocator.getGranted(ACCOUNT);
+                    assertTrue(granted <= limit, "granted " + granted + " of " + limit + " with " + expectedBuilds + " expected builds");
+                    if (share > 0) {
+                        running.add(buildId);
+                    } else {
+                        // a build goes without a share only when the account is full
+                        assertEquals(granted, limit);
+                    }
+                }
+            }
+        }
+    }
+}
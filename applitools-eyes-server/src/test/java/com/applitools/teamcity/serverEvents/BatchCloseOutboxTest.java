@@ -0,0 +1,215 @@
+package com.applitools.teamcity.serverEvents;
+
+import com.applitools.teamcity.Constants;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+
+public class BatchCloseOutboxTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SERVER_URL = "https://eyes.example.com";
+    private static final String API_KEY = "outbox-test-key";
+
+    private final Set<Long> existingBuilds = new HashSet<Long>();
+    private File directory;
+    private File journal;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("applitools-outbox-test").toFile();
+        journal = new File(directory, BatchCloseOutbox.JOURNAL_FILE_NAME);
+        existingBuilds.clear();
+        existingBuilds.addAll(Arrays.asList(1L, 2L, 3L));
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void pendingRequestsAreReplayedAfterReopening() throws IOException {
+        BatchCloseOutbox outbox = open(1000);
+        BatchCloseRequest first = request("batch-1", 1);
+        outbox.add(first);
+        outbox.add(request("batch-2", 2));
+        outbox.acknowledge(first);
+        outbox.shutdown();
+
+        outbox = open(1000);
+        try {
+            assertEquals(outbox.getPendingCount(), 1);
+            List<BatchCloseRequest> pending = new ArrayList<BatchCloseRequest>(outbox.getPendingRequests());
+            assertEquals(pending.size(), 1);
+            BatchCloseRequest replayed = pending.get(0);
+            assertEquals(replayed.getBatchId(), "batch-2");
+            assertEquals(replayed.getBuildId(), 2);
+            // the server URL and API key come from the build feature again
+            assertEquals(replayed.getServerUrl(), SERVER_URL);
+            assertEquals(replayed.getApiKey(), API_KEY);
+            assertNull(replayed.getBuildLog());
+        } finally {
+            outbox.shutdown();
+        }
+    }
+
+    @Test
+    public void apiKeyIsNeverWritten() throws IOException {
+        BatchCloseOutbox outbox = open(1000);
+        outbox.add(request("batch-1", 1));
+        outbox.shutdown();
+
+        assertFalse(read().contains(API_KEY));
+    }
+
+    @Test
+    public void compactionKeepsOnlyPendingRequests() throws IOException {
+        BatchCloseOutbox outbox = open(2);
+        BatchCloseRequest first = request("batch-1", 1);
+        BatchCloseRequest second = request("batch-2", 2);
+        outbox.add(first);
+        outbox.add(second);
+        outbox.add(request("batch-3", 3));
+        outbox.acknowledge(first);
+        outbox.acknowledge(second);
+        outbox.shutdown();
+
+        assertEquals(read(), "A\tbatch-3\t3\n");
+    }
+
+    @Test
+    public void reopeningCompactsTheJournal() throws IOException {
+        write("A\tbatch-1\t1\n" +
+                "A\tbatch-2\t2\n" +
+                "D\tbatch-1\n");
+
+        BatchCloseOutbox outbox = open(1000);
+        outbox.shutdown();
+
+        assertEquals(read(), "A\tbatch-2\t2\n");
+    }
+
+    @Test
+    public void requestOfARemovedBuildIsDropped() throws IOException {
+        BatchCloseOutbox outbox = open(1000);
+        outbox.add(request("batch-1", 1));
+        outbox.shutdown();
+        existingBuilds.remove(1L);
+
+        outbox = open(1000);
+        assertEquals(outbox.getPendingRequests().size(), 0);
+        outbox.shutdown();
+
+        outbox = open(1000);
+        try {
+            assertEquals(outbox.getPendingCount(), 0);
+        } finally {
+            outbox.shutdown();
+        }
+    }
+
+    @Test
+    public void malformedRecordsAreSkipped() throws IOException {
+        write("A\tbatch-1\t" + SERVER_URL + "\t" + API_KEY + "\n" +
+                "A\tbatch-2\tnot-a-build\n" +
+                "A\tbatch-3\t3\n" +
+                "A\tbatch-4");
+
+        BatchCloseOutbox outbox = open(1000);
+        try {
+            assertEquals(outbox.getPendingCount(), 1);
+            assertEquals(outbox.getPendingRequests().iterator().next().getBatchId(), "batch-3");
+        } finally {
+            outbox.shutdown();
+        }
+        assertEquals(read(), "A\tbatch-3\t3\n");
+    }
+
+    @Test
+    public void batchIdsAreEscaped() throws IOException {
+        BatchCloseOutbox outbox = open(1000);
+        outbox.add(request("batch\twith\\tab\nand newline", 1));
+        outbox.shutdown();
+
+        outbox = open(1000);
+        try {
+            assertEquals(outbox.getPendingRequests().iterator().next().getBatchId(), "batch\twith\\tab\nand newline");
+        } finally {
+            outbox.shutdown();
+        }
+    }
+
+    private BatchCloseOutbox open(int compactionThreshold) {
+        return new BatchCloseOutbox(journal, buildServer(), compactionThreshold, 1000);
+    }
+
+    private static BatchCloseRequest request(String batchId, long buildId) {
+        return new BatchCloseRequest(batchId, SERVER_URL, API_KEY, buildId, null);
+    }
+
+    private String read() throws IOException {
+        return new String(Files.readAllBytes(journal.toPath()), UTF_8);
+    }
+
+    private void write(String records) throws IOException {
+        Files.write(journal.toPath(), records.getBytes(UTF_8));
+    }
+
+    private SBuildServer buildServer() {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put(Constants.APPLITOOLS_API_KEY_FIELD, API_KEY);
+        parameters.put(Constants.APPLITOOLS_SERVER_URL_FIELD, SERVER_URL);
+        final SBuildFeatureDescriptor feature = stub(SBuildFeatureDescriptor.class, "getParameters", parameters);
+        final SBuild build = stub(SBuild.class, "getBuildFeaturesOfType", Collections.singletonList(feature));
+        return (SBuildServer) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{SBuildServer.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("findBuildInstanceById")) {
+                            return existingBuilds.contains((Long) args[0]) ? build : null;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static <T> T stub(Class<T> type, final String methodName, final Object answer) {
+        return type.cast(Proxy.newProxyInstance(BatchCloseOutboxTest.class.getClassLoader(), new Class<?>[]{type},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getName().equals(methodName) ? answer : null;
+                    }
+                }));
+    }
+}
@@ -0,0 +1,75 @@
+package com.applitools.teamcity.testkit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request counters of one {@link EyesStubServer} endpoint.
+ */
+public class EndpointStats {
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    void started() {
+        requests.incrementAndGet();
+        int current = inFlight.incrementAndGet();
+        int max;
+        while (current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current)) {
+            // retry until the maximum is recorded
+        }
+    }
+
+    void finished(int status) {
+        inFlight.decrementAndGet();
+        if (status == 429) {
+            throttled.incrementAndGet();
+        } else if (status >= 200 && status < 300) {
+            succeeded.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    void reset() {
+        requests.set(0);
+        succeeded.set(0);
+        failed.set(0);
+        throttled.set(0);
+        maxInFlight.set(inFlight.get());
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    @Override
+    public String toString() {
+        return "requests " + getRequests() + ", succeeded " + getSucceeded() + ", failed " + getFailed()
+                + ", throttled " + getThrottled() + ", max in flight " + getMaxInFlight();
+    }
+}
@@ -0,0 +1,348 @@
+package com.applitools.teamcity.testkit;
+
+import com.applitools.teamcity.Constants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the Applitools Eyes API, for load and latency tests of the plugin HTTP paths
+ * without network access. It serves the batch close, bind pointers and batch status endpoints on the
+ * loopback interface; each endpoint answers according to its {@link ResponseProfile}.
+ * <p>
+ * The batch status endpoint serves the format the plugin assumes until Applitools confirms it, see
+ * {@link StubBatch#setStatusJson(String)} to serve a recorded response instead.
+ */
+public class EyesStubServer {
+
+    public enum Endpoint {
+        CLOSE_BATCH("DELETE", Constants.BATCH_NOTIFICATION_PATH),
+        BIND_POINTERS("POST", Constants.BATCH_BIND_POINTERS_PATH),
+        BATCH_STATUS("GET", Constants.BATCH_STATUS_PATH);
+
+        private final String method;
+        private final Pattern path;
+
+        Endpoint(String method, String pathFormat) {
+            this.method = method;
+            this.path = toPattern(pathFormat);
+        }
+    }
+
+    private static final String API_PREFIX = "/api/sessions/batches/";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<Endpoint, EndpointState> endpoints = new EnumMap<Endpoint, EndpointState>(Endpoint.class);
+    private final ConcurrentHashMap<String, StubBatch> batches = new ConcurrentHashMap<String, StubBatch>();
+    private volatile String apiKey;
+
+    /**
+     * @param port the port to listen on, 0 picks a free one.
+     */
+    public EyesStubServer(int port) throws IOException {
+        for (Endpoint endpoint : Endpoint.values()) {
+            endpoints.put(endpoint, new EndpointState());
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "eyes-stub-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext(API_PREFIX, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                EyesStubServer.this.handle(exchange);
+            }
+        });
+    }
+
+    public EyesStubServer start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * The server URL to configure in the plugin, for example as the build feature server URL.
+     */
+    public String getUrl() {
+        return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort();
+    }
+
+    public void setProfile(Endpoint endpoint, ResponseProfile profile) {
+        endpoints.get(endpoint).profile = profile;
+    }
+
+    public void setProfile(ResponseProfile profile) {
+        for (Endpoint endpoint : Endpoint.values()) {
+            setProfile(endpoint, profile);
+        }
+    }
+
+    /**
+     * When set, requests with a different apiKey query parameter are answered with 401.
+     */
+    public void setApiKey(String apiKey) {
+        this.apiKey = apiKey;
+    }
+
+    public EndpointStats getStats(Endpoint endpoint) {
+        return endpoints.get(endpoint).stats;
+    }
+
+    public StubBatch getBatch(String batchId) {
+        return batches.get(batchId);
+    }
+
+    public StubBatch getOrCreateBatch(String batchId) {
+        StubBatch batch = batches.get(batchId);
+        if (batch == null) {
+            StubBatch created = new StubBatch(batchId);
+            batch = batches.putIfAbsent(batchId, created);
+            if (batch == null) {
+                batch = created;
+            }
+        }
+        return batch;
+    }
+
+    public int getBatchCount() {
+        return batches.size();
+    }
+
+    /**
+     * Forgets all batches and counters, and restores the healthy profile on every endpoint.
+     */
+    public void reset() {
+        batches.clear();
+        for (EndpointState state : endpoints.values()) {
+            state.profile = ResponseProfile.HEALTHY;
+            state.stats.reset();
+        }
+    }
+
+    public String describe() {
+        StringBuilder description = new StringBuilder("Eyes stub at ").append(getUrl()).append(", ")
+                .append(batches.size()).append(" batches");
+        for (Map.Entry<Endpoint, EndpointState> entry : endpoints.entrySet()) {
+            description.append("; ").append(entry.getKey()).append(": ").append(entry.getValue().stats);
+        }
+        return description.toString();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getRawPath();
+            for (Endpoint endpoint : Endpoint.values()) {
+                Matcher matcher = endpoint.path.matcher(path);
+                if (matcher.matches()) {
+                    if (!endpoint.method.equalsIgnoreCase(exchange.getRequestMethod())) {
+                        respond(exchange, 405, null);
+                    } else {
+                        handle(exchange, endpoint, decode(matcher.group(1)));
+                    }
+                    return;
+                }
+            }
+            respond(exchange, 404, null);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handle(HttpExchange exchange, Endpoint endpoint, String batchId) throws IOException {
+        EndpointState state = endpoints.get(endpoint);
+        ResponseProfile profile = state.profile;
+        int status = 500;
+        state.stats.started();
+        try {
+            String body = read(exchange.getRequestBody());
+            delay(profile);
+            if (state.isThrottled(profile)) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, status = 429, null);
+            } else if (apiKey != null && !apiKey.equals(getApiKey(exchange.getRequestURI().getRawQuery()))) {
+                respond(exchange, status = 401, null);
+            } else if (profile.getErrorRate() > 0.0 && ThreadLocalRandom.current().nextDouble() < profile.getErrorRate()) {
+                respond(exchange, status = profile.getErrorStatus(), null);
+            } else {
+                status = 200;
+                switch (endpoint) {
+                    case CLOSE_BATCH:
+                        getOrCreateBatch(batchId).close();
+                        respond(exchange, status, null);
+                        break;
+                    case BIND_POINTERS:
+                        getOrCreateBatch(batchId).bind(body);
+                        respond(exchange, status, null);
+                        break;
+                    default:
+                        StubBatch batch = batches.get(batchId);
+                        if (batch == null) {
+                            respond(exchange, status = 404, null);
+                        } else {
+                            respond(exchange, status, batch.toJson());
+                        }
+                }
+            }
+        } finally {
+            state.stats.finished(status);
+        }
+    }
+
+    private static void delay(ResponseProfile profile) {
+        long latency = profile.getMinLatencyMs();
+        if (profile.getMaxLatencyMs() > latency) {
+            latency += ThreadLocalRandom.current().nextLong(profile.getMaxLatencyMs() - latency + 1);
+        }
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        if (json == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = json.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static String getApiKey(String query) throws UnsupportedEncodingException {
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("apiKey=")) {
+                    return decode(parameter.substring("apiKey=".length()));
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value, "UTF-8");
+    }
+
+    /**
+     * Turns one of the path formats of {@link Constants} into a pattern capturing the batch id.
+     */
+    private static Pattern toPattern(String pathFormat) {
+        String[] parts = pathFormat.split("%s", -1);
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                regex.append("([^/]+)");
+            }
+            if (!parts[i].isEmpty()) {
+                regex.append(Pattern.quote(parts[i]));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static class EndpointState {
+        private final EndpointStats stats = new EndpointStats();
+        private volatile ResponseProfile profile = ResponseProfile.HEALTHY;
+        private long windowStart;
+        private int windowCount;
+
+        private synchronized boolean isThrottled(ResponseProfile profile) {
+            if (profile.getMaxRequestsPerSecond() <= 0) {
+                return false;
+            }
+            long second = System.currentTimeMillis() / 1000;
+            if (second != windowStart) {
+                windowStart = second;
+                windowCount = 0;
+            }
+            return ++windowCount > profile.getMaxRequestsPerSecond();
+        }
+    }
+
+    /**
+     * Runs the stub on its own, for manual tests of an agent or a server:
+     * {@code java -Deyes.stub.latencyMs=50..500 -Deyes.stub.errorRate=0.05 -Deyes.stub.maxRequestsPerSecond=100 EyesStubServer 8090}
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        ResponseProfile profile = ResponseProfile.HEALTHY;
+        String latency = System.getProperty("eyes.stub.latencyMs");
+        if (latency != null) {
+            String[] range = latency.split("\\.\\.");
+            long min = Long.parseLong(range[0].trim());
+            profile = profile.withLatency(min, range.length > 1 ? Long.parseLong(range[1].trim()) : min);
+        }
+        String errorRate = System.getProperty("eyes.stub.errorRate");
+        if (errorRate != null) {
+            profile = profile.withErrors(Double.parseDouble(errorRate), Integer.getInteger("eyes.stub.errorStatus", 500));
+        }
+        profile = profile.withThrottling(Integer.getInteger("eyes.stub.maxRequestsPerSecond", 0));
+
+        final EyesStubServer stub = new EyesStubServer(port);
+        stub.setApiKey(System.getProperty("eyes.stub.apiKey"));
+        stub.setProfile(profile);
+        stub.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println(stub.describe());
+                stub.stop();
+            }
+        }));
+        System.out.println("Eyes stub listening on " + stub.getUrl() + " with " + profile);
+    }
+}
@@ -0,0 +1,81 @@
+package com.applitools.teamcity.testkit;
+
+/**
+ * How an endpoint of the {@link EyesStubServer} answers: added latency, a share of failed responses,
+ * and a request rate above which calls are throttled with 429. Profiles are immutable, the with*
+ * methods return a modified copy.
+ */
+public class ResponseProfile {
+
+    public static final ResponseProfile HEALTHY = new ResponseProfile(0, 0, 0.0, 500, 0);
+
+    private final long minLatencyMs;
+    private final long maxLatencyMs;
+    private final double errorRate;
+    private final int errorStatus;
+    private final int maxRequestsPerSecond;
+
+    private ResponseProfile(long minLatencyMs, long maxLatencyMs, double errorRate, int errorStatus, int maxRequestsPerSecond) {
+        this.minLatencyMs = minLatencyMs;
+        this.maxLatencyMs = maxLatencyMs;
+        this.errorRate = errorRate;
+        this.errorStatus = errorStatus;
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    /**
+     * Each response is delayed by a uniformly distributed time between the two bounds.
+     */
+    public ResponseProfile withLatency(long minLatencyMs, long maxLatencyMs) {
+        if (minLatencyMs < 0 || maxLatencyMs < minLatencyMs) {
+            throw new IllegalArgumentException("Invalid latency range " + minLatencyMs + ".." + maxLatencyMs);
+        }
+        return new ResponseProfile(minLatencyMs, maxLatencyMs, errorRate, errorStatus, maxRequestsPerSecond);
+    }
+
+    /**
+     * The given share of requests, between 0 and 1, is answered with the given status code.
+     */
+    public ResponseProfile withErrors(double errorRate, int errorStatus) {
+        if (errorRate < 0.0 || errorRate > 1.0) {
+            throw new IllegalArgumentException("Invalid error rate " + errorRate);
+        }
+        return new ResponseProfile(minLatencyMs, maxLatencyMs, errorRate, errorStatus, maxRequestsPerSecond);
+    }
+
+    /**
+     * Requests above the given number per second are answered with 429; 0 turns throttling off.
+     */
+    public ResponseProfile withThrottling(int maxRequestsPerSecond) {
+        if (maxRequestsPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid request rate " + maxRequestsPerSecond);
+        }
+        return new ResponseProfile(minLatencyMs, maxLatencyMs, errorRate, errorStatus, maxRequestsPerSecond);
+    }
+
+    public long getMinLatencyMs() {
+        return minLatencyMs;
+    }
+
+    public long getMaxLatencyMs() {
+        return maxLatencyMs;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public int getErrorStatus() {
+        return errorStatus;
+    }
+
+    public int getMaxRequestsPerSecond() {
+        return maxRequestsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "latency " + minLatencyMs + ".." + maxLatencyMs + "ms, errors " + errorRate + " (" + errorStatus + ")"
+                + ", throttling " + (maxRequestsPerSecond > 0 ? maxRequestsPerSecond + "/s" : "off");
+    }
+}
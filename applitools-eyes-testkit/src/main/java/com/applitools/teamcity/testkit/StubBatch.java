@@ -0,0 +1,105 @@
+package com.applitools.teamcity.testkit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch as seen by the {@link EyesStubServer}. Batches are created by the first call that mentions
+ * them, or up front by the test with {@link EyesStubServer#getOrCreateBatch(String)}.
+ */
+public class StubBatch {
+
+    private final String id;
+    private final long startedAt;
+    private final List<String> boundPointers = new ArrayList<String>();
+    private long completedAt;
+    private int closeCount;
+    private int running;
+    private int passed;
+    private int failed;
+    private int unresolved;
+    private int added;
+    private int steps;
+    private String statusJson;
+
+    StubBatch(String id) {
+        this.id = id;
+        this.startedAt = System.currentTimeMillis();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Sets the step count reported by the batch status endpoint.
+     */
+    public synchronized void setStepsCount(int steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * Sets the test counters reported by the batch status endpoint.
+     */
+    public synchronized void setResults(int running, int passed, int failed, int unresolved, int added) {
+        this.running = running;
+        this.passed = passed;
+        this.failed = failed;
+        this.unresolved = unresolved;
+        this.added = added;
+    }
+
+    /**
+     * Replaces the body served by the batch status endpoint, for example with a response recorded from the Eyes
+     * server, to check the plugin against it. Null restores the generated body.
+     */
+    public synchronized void setStatusJson(String statusJson) {
+        this.statusJson = statusJson;
+    }
+
+    public synchronized boolean isCompleted() {
+        return completedAt != 0;
+    }
+
+    public synchronized int getCloseCount() {
+        return closeCount;
+    }
+
+    public synchronized List<String> getBoundPointers() {
+        return new ArrayList<String>(boundPointers);
+    }
+
+    synchronized void close() {
+        closeCount++;
+        if (completedAt == 0) {
+            completedAt = System.currentTimeMillis();
+            running = 0;
+        }
+    }
+
+    synchronized void bind(String body) {
+        boundPointers.add(body);
+    }
+
+    /**
+     * The generated body has the fields {@code BatchStatusClient} expects. They are not confirmed by the Eyes API
+     * documentation yet; {@code BatchStatusContractTest} keeps the two in sync.
+     */
+    synchronized String toJson() {
+        if (statusJson != null) return statusJson;
+        StringBuilder json = new StringBuilder();
+        json.append("{\"id\":\"").append(EyesStubServer.escape(id)).append('"');
+        json.append(",\"isCompleted\":").append(completedAt != 0);
+        json.append(",\"startedAt\":").append(startedAt);
+        if (completedAt != 0) {
+            json.append(",\"completedAt\":").append(completedAt);
+        }
+        json.append(",\"runningCount\":").append(running);
+        json.append(",\"passedCount\":").append(passed);
+        json.append(",\"failedCount\":").append(failed);
+        json.append(",\"unresolvedCount\":").append(unresolved);
+        json.append(",\"newCount\":").append(added);
+        json.append(",\"stepsCount\":").append(steps);
+        return json.append('}').toString();
+    }
+}
@@ -0,0 +1,68 @@
+package com.applitools.teamcity.testkit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal stand-ins for TeamCity API interfaces, answering method calls by method name. Used by the load tests and
+ * the benchmarks.
+ */
+public final class Stubs {
+
+    /**
+     * Computes the answer of a stubbed method from its arguments.
+     */
+    public interface Answer {
+        Object answer(Object[] args);
+    }
+
+    private static final Map<Class<?>, Object> PRIMITIVE_DEFAULTS = new HashMap<Class<?>, Object>();
+
+    static {
+        PRIMITIVE_DEFAULTS.put(boolean.class, false);
+        PRIMITIVE_DEFAULTS.put(int.class, 0);
+        PRIMITIVE_DEFAULTS.put(long.class, 0L);
+        PRIMITIVE_DEFAULTS.put(double.class, 0d);
+    }
+
+    private Stubs() {
+    }
+
+    /**
+     * Creates a stub returning the given values, or {@link Answer} results, for the named methods, and
+     * null, zero or false for all other methods.
+     */
+    public static <T> T of(Class<T> type, final Map<String, ?> answers) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                Object answer = answers.get(name);
+                if (answer instanceof Answer) {
+                    return ((Answer) answer).answer(args);
+                }
+                if (answer != null) {
+                    return answer;
+                }
+                if (name.equals("hashCode") && method.getParameterTypes().length == 0) {
+                    return System.identityHashCode(proxy);
+                }
+                if (name.equals("equals") && method.getParameterTypes().length == 1) {
+                    return proxy == args[0];
+                }
+                if (name.equals("toString") && method.getParameterTypes().length == 0) {
+                    return "Stub of " + method.getDeclaringClass().getSimpleName();
+                }
+                return PRIMITIVE_DEFAULTS.get(method.getReturnType());
+            }
+        }));
+    }
+
+    public static <T> T of(Class<T> type) {
+        return of(type, Collections.<String, Object>emptyMap());
+    }
+}
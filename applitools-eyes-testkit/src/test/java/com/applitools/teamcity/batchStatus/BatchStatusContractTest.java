@@ -0,0 +1,126 @@
+package com.applitools.teamcity.batchStatus;
+
+import com.applitools.teamcity.CircuitBreaker;
+import com.applitools.teamcity.Common;
+import com.applitools.teamcity.Constants;
+import com.applitools.teamcity.http.ApplitoolsHttpClient;
+import com.applitools.teamcity.http.ApplitoolsRequestExecutor;
+import com.applitools.teamcity.testkit.EyesStubServer;
+import com.applitools.teamcity.testkit.StubBatch;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Checks {@link BatchStatusClient} against the batch status endpoint of the {@link EyesStubServer}, so the format the
+ * client reads and the format the stub serves cannot drift apart. Once a response of the Eyes server is recorded, it
+ * can be served with {@link StubBatch#setStatusJson(String)} to check the client against it.
+ */
+public class BatchStatusContractTest {
+
+    private static final String API_KEY = "contract-test-key";
+
+    private EyesStubServer stub;
+    private ApplitoolsHttpClient httpClient;
+    private ApplitoolsRequestExecutor requestExecutor;
+    private BatchStatusClient client;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        System.setProperty(BatchStatusClient.ENABLED_PROPERTY, "true");
+        System.setProperty(Constants.RETRY_BASE_DELAY_PROPERTY, "1");
+        System.setProperty(Constants.RETRY_MAX_DELAY_PROPERTY, "1");
+        stub = new EyesStubServer(0).start();
+        stub.setApiKey(API_KEY);
+        httpClient = new ApplitoolsHttpClient();
+    }
+
+    @BeforeMethod
+    public void reset() {
+        stub.reset();
+        requestExecutor = new ApplitoolsRequestExecutor();
+        client = new BatchStatusClient(httpClient, requestExecutor);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDown() {
+        if (httpClient != null) httpClient.shutdown();
+        if (stub != null) stub.stop();
+        System.clearProperty(BatchStatusClient.ENABLED_PROPERTY);
+    }
+
+    @Test
+    public void statusServedByTheStubIsRead() throws IOException {
+        StubBatch batch = stub.getOrCreateBatch("teamcity-Contract-1-1");
+        batch.setResults(1, 2, 3, 4, 5);
+        batch.setStepsCount(6);
+
+        BatchSummary summary = client.fetch(stub.getUrl(), API_KEY, batch.getId());
+
+        assertEquals(summary.getId(), batch.getId());
+        assertEquals(summary.getRunningCount(), 1);
+        assertEquals(summary.getPassedCount(), 2);
+        assertEquals(summary.getFailedCount(), 3);
+        assertEquals(summary.getUnresolvedCount(), 4);
+        assertEquals(summary.getNewCount(), 5);
+        assertEquals(summary.getStepsCount(), 6);
+        assertEquals(summary.getStatus(), BatchSummary.RUNNING);
+    }
+
+    @Test
+    public void closedBatchIsCompleted() throws IOException {
+        StubBatch batch = stub.getOrCreateBatch("teamcity-Contract-2-2");
+        batch.setResults(0, 3, 1, 0, 0);
+        closeBatch(batch.getId());
+
+        BatchSummary summary = client.fetch(stub.getUrl(), API_KEY, batch.getId());
+
+        assertTrue(summary.isCompleted());
+        assertTrue(summary.getCompletedAt() >= summary.getStartedAt());
+        assertEquals(summary.getStatus(), BatchSummary.FAILED);
+    }
+
+    @Test
+    public void unknownBatchIsNull() throws IOException {
+        assertNull(client.fetch(stub.getUrl(), API_KEY, "teamcity-Contract-3-3"));
+    }
+
+    @Test
+    public void unexpectedFormatFailsOnceWithoutSuspendingCloses() throws IOException {
+        StubBatch batch = stub.getOrCreateBatch("teamcity-Contract-4-4");
+        batch.setStatusJson("{\"batchId\":\"teamcity-Contract-4-4\",\"state\":\"Running\"}");
+        int reads = 10;
+        for (int i = 0; i < reads; i++) {
+            try {
+                client.fetch(stub.getUrl(), API_KEY, batch.getId());
+                fail("A response without the expected fields must not be read as a batch status");
+            } catch (IOException expected) {
+                // the format mismatch is reported to the caller
+            }
+        }
+
+        // neither retried nor counted as server failures, and closes use another circuit anyway
+        assertEquals(stub.getStats(EyesStubServer.Endpoint.BATCH_STATUS).getRequests(), reads);
+        assertEquals(requestExecutor.getCircuitBreaker(stub.getUrl()).getState(), CircuitBreaker.State.CLOSED);
+        assertEquals(requestExecutor.getCircuitBreaker(Common.getServerUrl(stub.getUrl()) + "#status").getState(),
+                CircuitBreaker.State.CLOSED);
+    }
+
+    private void closeBatch(String batchId) throws IOException {
+        DeleteMethod request = new DeleteMethod(stub.getUrl() + String.format(Constants.BATCH_NOTIFICATION_PATH, batchId) + "?apiKey=" + API_KEY);
+        try {
+            assertEquals(httpClient.executeMethod(request), 200);
+        } finally {
+            request.releaseConnection();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.applitools.teamcity.serverEvents;
+
+import com.applitools.teamcity.Constants;
+import com.applitools.teamcity.batchStatus.BatchPoller;
+import com.applitools.teamcity.batchStatus.BatchStatusCache;
+import com.applitools.teamcity.batchStatus.BatchStatusClient;
+import com.applitools.teamcity.batchStatus.BatchSummaryStore;
+import com.applitools.teamcity.concurrency.ConcurrencyAllocator;
+import com.applitools.teamcity.http.ApplitoolsHttpClient;
+import com.applitools.teamcity.http.ApplitoolsRequestExecutor;
+import com.applitools.teamcity.testkit.EyesStubServer;
+import com.applitools.teamcity.testkit.ResponseProfile;
+import com.applitools.teamcity.testkit.Stubs;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.buildLog.BuildLog;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Fires beforeBuildFinish for many synthetic builds from many threads, as when hundreds of builds finish within a
+ * minute, against the in-process Eyes stub. Each close is followed by a rate limited prefetch of the final batch
+ * status. Measures how long the event threads are blocked, the rate at which batches get closed, and the heap
+ * retained afterwards, and fails when a threshold is exceeded.
+ * <p>
+ * Runs with {@code mvn -P load-tests test}; the size of the storm and the thresholds are set with loadTest.*
+ * system properties.
+ */
+public class BuildFinishStormLoadTest {
+
+    private final int builds = Integer.getInteger("loadTest.builds", 500);
+    private final int eventThreads = Integer.getInteger("loadTest.eventThreads", 32);
+    private final long stubMinLatencyMs = Long.getLong("loadTest.stub.minLatencyMs", 20);
+    private final long stubMaxLatencyMs = Long.getLong("loadTest.stub.maxLatencyMs", 200);
+    private final double stubErrorRate = Double.parseDouble(System.getProperty("loadTest.stub.errorRate", "0.02"));
+    private final int warmupBuildCount = Integer.getInteger("loadTest.warmupBuilds", 100);
+    private final long timeoutSeconds = Long.getLong("loadTest.timeoutSeconds", 180);
+
+    private final double maxBlockingP99Ms = Double.parseDouble(System.getProperty("loadTest.maxBlockingP99Ms", "50"));
+    private final double minClosesPerSecond = Double.parseDouble(System.getProperty("loadTest.minClosesPerSecond", "15"));
+    private final double maxHeapGrowthMb = Double.parseDouble(System.getProperty("loadTest.maxHeapGrowthMb", "32"));
+
+    private EyesStubServer stub;
+    private ResponseProfile profile;
+    private File dataDirectory;
+    private BatchCloseOutbox outbox;
+    private BatchCloseDispatcher dispatcher;
+    private BatchSummaryStore summaryStore;
+    private BatchPoller batchPoller;
+    private ApplitoolsHttpClient httpClient;
+    private ApplitoolsBuildServerAdapter adapter;
+    private final Map<Long, SRunningBuild> buildsById = new ConcurrentHashMap<Long, SRunningBuild>();
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        System.setProperty(Constants.RETRY_BASE_DELAY_PROPERTY, System.getProperty(Constants.RETRY_BASE_DELAY_PROPERTY, "50"));
+        System.setProperty(Constants.RETRY_MAX_DELAY_PROPERTY, System.getProperty(Constants.RETRY_MAX_DELAY_PROPERTY, "1000"));
+        // the stub serves the batch status, so the prefetch after each close is part of the load
+        System.setProperty(BatchStatusClient.ENABLED_PROPERTY, "true");
+
+        stub = new EyesStubServer(0).start();
+        profile = ResponseProfile.HEALTHY
+                .withLatency(stubMinLatencyMs, stubMaxLatencyMs)
+                .withErrors(stubErrorRate, 503);
+        stub.setProfile(profile);
+
+        dataDirectory = Files.createTempDirectory("applitools-load-test").toFile();
+        Map<String, Object> serverAnswers = new HashMap<String, Object>();
+        serverAnswers.put("findBuildInstanceById", new Stubs.Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                return buildsById.get((Long) args[0]);
+            }
+        });
+        SBuildServer buildServer = Stubs.of(SBuildServer.class, serverAnswers);
+        outbox = new BatchCloseOutbox(new ServerPaths(dataDirectory.getAbsolutePath()), buildServer);
+        httpClient = new ApplitoolsHttpClient();
+        ApplitoolsRequestExecutor requestExecutor = new ApplitoolsRequestExecutor();
+        BatchStatusClient statusClient = new BatchStatusClient(httpClient, requestExecutor);
+        BatchStatusCache statusCache = new BatchStatusCache(statusClient);
+        summaryStore = new BatchSummaryStore(buildServer, statusCache);
+        batchPoller = new BatchPoller(statusClient, statusCache);
+        dispatcher = new BatchCloseDispatcher(new BatchCloser(httpClient, requestExecutor), outbox, summaryStore);
+        adapter = new ApplitoolsBuildServerAdapter(EventDispatcher.create(BuildServerListener.class), dispatcher, batchPoller,
+                new ConcurrencyAllocator(EventDispatcher.create(BuildServerListener.class), buildServer));
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDown() {
+        if (dispatcher != null) dispatcher.shutdown();
+        if (summaryStore != null) summaryStore.shutdown();
+        if (batchPoller != null) batchPoller.shutdown();
+        if (outbox != null) outbox.shutdown();
+        if (httpClient != null) httpClient.shutdown();
+        if (stub != null) stub.stop();
+        delete(dataDirectory);
+    }
+
+    @Test
+    public void buildFinishStorm() throws Exception {
+        // warm up class loading, the JIT, the worker threads and the pooled connections
+        List<SRunningBuild> warmupBuilds = builds("LoadTest_Warmup", warmupBuildCount, 1L);
+        fire(warmupBuilds, new long[warmupBuildCount]);
+        awaitCloses(warmupBuildCount, System.nanoTime());
+        warmupBuilds.clear();
+        buildsById.clear();
+        stub.reset();
+        stub.setProfile(profile);
+
+        List<SRunningBuild> runningBuilds = builds("LoadTest_Build", builds, 100000L);
+        long heapBefore = usedHeapAfterGc();
+
+        long[] blockingNanos = new long[builds];
+        long stormStart = System.nanoTime();
+        fire(runningBuilds, blockingNanos);
+        long eventsDone = System.nanoTime();
+        long closesDone = awaitCloses(builds, stormStart);
+        runningBuilds.clear();
+        buildsById.clear();
+        long heapAfter = usedHeapAfterGc();
+
+        Arrays.sort(blockingNanos);
+        double closesPerSecond = stub.getBatchCount() / ((closesDone - stormStart) / 1e9);
+        double heapGrowthMb = (heapAfter - heapBefore) / (1024.0 * 1024.0);
+
+        Map<String, String> report = new HashMap<String, String>();
+        report.put("builds", Integer.toString(builds));
+        report.put("eventThreads", Integer.toString(eventThreads));
+        report.put("blocking.p50Ms", format(percentileMs(blockingNanos, 50)));
+        report.put("blocking.p95Ms", format(percentileMs(blockingNanos, 95)));
+        report.put("blocking.p99Ms", format(percentileMs(blockingNanos, 99)));
+        report.put("blocking.maxMs", format(blockingNanos[blockingNanos.length - 1] / 1e6));
+        report.put("events.durationMs", format((eventsDone - stormStart) / 1e6));
+        report.put("closes.count", Integer.toString(stub.getBatchCount()));
+        report.put("closes.perSecond", format(closesPerSecond));
+        report.put("heap.growthMb", format(heapGrowthMb));
+        report.put("dispatcher", dispatcher.describe());
+        report.put("summaryStore", summaryStore.describe());
+        report.put("stub", stub.describe());
+        writeReport(report);
+
+        assertEquals(stub.getBatchCount(), builds, "Not all batches were closed within " + timeoutSeconds + "s");
+        assertTrue(percentileMs(blockingNanos, 99) <= maxBlockingP99Ms,
+                "Event thread blocking p99 " + report.get("blocking.p99Ms") + "ms exceeds " + maxBlockingP99Ms + "ms");
+        assertTrue(closesPerSecond >= minClosesPerSecond,
+                "Close throughput " + report.get("closes.perSecond") + "/s is below " + minClosesPerSecond + "/s");
+        assertTrue(heapGrowthMb <= maxHeapGrowthMb,
+                "Heap grew by " + report.get("heap.growthMb") + "MB, more than " + maxHeapGrowthMb + "MB");
+    }
+
+    /**
+     * Calls beforeBuildFinish for all builds from the event threads, recording how long each call blocked.
+     */
+    private void fire(final List<SRunningBuild> runningBuilds, final long[] blockingNanos) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        ExecutorService eventThreadPool = Executors.newFixedThreadPool(eventThreads);
+        for (int t = 0; t < eventThreads; t++) {
+            eventThreadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startSignal.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    int index;
+                    while ((index = next.getAndIncrement()) < runningBuilds.size()) {
+                        long start = System.nanoTime();
+                        adapter.beforeBuildFinish(runningBuilds.get(index));
+                        blockingNanos[index] = System.nanoTime() - start;
+                    }
+                }
+            });
+        }
+        startSignal.countDown();
+        eventThreadPool.shutdown();
+        assertTrue(eventThreadPool.awaitTermination(timeoutSeconds, TimeUnit.SECONDS), "Event threads did not finish");
+    }
+
+    /**
+     * Waits until the stub has seen the expected number of closed batches and the outbox is empty.
+     * The periodic redelivery of failed closes is sped up to once a second.
+     *
+     * @return the time at which the wait ended.
+     */
+    private long awaitCloses(int expected, long start) throws InterruptedException {
+        long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        for (int i = 1; (stub.getBatchCount() < expected || outbox.getPendingCount() > 0) && System.nanoTime() < deadline; i++) {
+            Thread.sleep(10);
+            if (i % 100 == 0) {
+                dispatcher.redeliverPending();
+            }
+        }
+        return System.nanoTime();
+    }
+
+    private List<SRunningBuild> builds(String buildTypePrefix, int count, long firstBuildId) {
+        List<SRunningBuild> result = new ArrayList<SRunningBuild>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(build(buildTypePrefix + (i % 20), Integer.toString(i), firstBuildId + i));
+        }
+        return result;
+    }
+
+    private SRunningBuild build(final String buildTypeId, final String buildNumber, final long buildId) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put(Constants.APPLITOOLS_SERVER_URL_FIELD, stub.getUrl());
+        parameters.put(Constants.APPLITOOLS_API_KEY_FIELD, "load-test-key");
+        parameters.put(Constants.APPLITOOLS_NOTIFY_BY_COMPLETION_FIELD, "true");
+        Map<String, Object> featureAnswers = new HashMap<String, Object>();
+        featureAnswers.put("getType", Constants.APPLITOOLS_BUILD_FEATURE_TYPE);
+        featureAnswers.put("getParameters", Collections.unmodifiableMap(parameters));
+        SBuildFeatureDescriptor feature = Stubs.of(SBuildFeatureDescriptor.class, featureAnswers);
+
+        Map<String, Object> buildAnswers = new HashMap<String, Object>();
+        buildAnswers.put("getBuildTypeId", buildTypeId);
+        buildAnswers.put("getBuildNumber", buildNumber);
+        buildAnswers.put("getBuildId", buildId);
+        buildAnswers.put("getBuildFeaturesOfType", Collections.<SBuildFeatureDescriptor>singletonList(feature));
+        buildAnswers.put("getBuildLog", Stubs.of(BuildLog.class));
+        buildAnswers.put("isFinished", true);
+        buildAnswers.put("getArtifactsDirectory", new File(dataDirectory, "artifacts/" + buildId));
+        SRunningBuild build = Stubs.of(SRunningBuild.class, buildAnswers);
+        buildsById.put(buildId, build);
+        return build;
+    }
+
+    private static double percentileMs(long[] sortedNanos, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, Math.min(index, sortedNanos.length - 1))] / 1e6;
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    private static void writeReport(Map<String, String> report) throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(report);
+        File file = new File("target", "build-finish-storm.properties");
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "Build finish storm load test");
+        } finally {
+            out.close();
+        }
+        List<String> keys = new ArrayList<String>(report.keySet());
+        Collections.sort(keys);
+        for (String key : keys) {
+            System.out.println("[load-test] " + key + " = " + report.get(key));
+        }
+    }
+
+    private static void delete(File file) {
+        if (file == null) return;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}